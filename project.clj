@@ -22,7 +22,7 @@ Johnson et al.)
                  [net.mikera/vectorz-clj "0.21.0"]]
   :min-lein-version "2.0.0"
   :global-vars {*warn-on-reflection* true}
-  :aot [clj-span.commandline clj-span.java-span-bridge]
+  :aot [clj-span.result-sink clj-span.commandline clj-span.java-span-bridge]
   :main clj-span.commandline
   :resource-paths [] ;; exclude resources/ from my jars and uberjars
   :repositories [["thinklab" "http://integratedmodelling.org/sw/lib"]])
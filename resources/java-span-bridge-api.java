@@ -46,6 +46,34 @@ double[][] probs = ...;
 probLayer.put("bounds", bounds);
 probLayer.put("probs", probs);
 
+// Large probabilistic layers may instead pass "probs" as a flat 1D
+// double array holding (bounds.length - 1) probability densities per
+// cell, stored one offset after another. That is, the density for
+// offset i and state range j is at index i * (bounds.length - 1) + j.
+// Set the first density of a cell to NaN to mark it as having no
+// data. This avoids allocating one array per cell, and numbers layers
+// are reduced to their means without building any per-cell objects.
+double[] flatProbs = ...;
+probLayer.put("probs", flatProbs);
+
+// Deterministic layers (including routing layers) which are too large
+// to hold on the heap may instead be passed as the String path of a
+// raw little-endian float32 or float64 raster file. Its rows must be
+// stored top row first (i.e. starting with y = 0 in the projection
+// above, as in an ESRI .flt file), and it must be accompanied by a
+// sidecar header file with the same name and a .hdr extension:
+//
+//   nrows        <integer>
+//   ncols        <integer>
+//   cellsize     <double>
+//   nodata_value <double>   (optional)
+//   nbits        <32|64>    (optional, defaults to 32)
+//   byteorder    LSBFIRST   (optional)
+//
+// The file is memory-mapped and read in place. NaN and nodata cells
+// are read as 0.
+String elevationRaster = "/path/to/elevation.flt";
+
 // Create the routing layers as 1D double arrays (provided they are
 // deterministic, of course). All layers must have the same number of
 // cells as the source, sink, and use layers. All values in these
@@ -199,6 +227,46 @@ boolean animation = ...;
 
 String[] resultLayers = ...;
 
+// Optionally, request primitive result arrays. If set to true and
+// value-type="numbers", each result layer will be written directly
+// into a double[] rather than a Double[], which avoids boxing every
+// cell of the result maps. This parameter may be omitted, in which
+// case it defaults to false.
+boolean primitiveResults = ...;
+
+// Optionally, return per-stage timing and memory metrics in the result
+// map under "stage-metrics" (see below). This parameter may be
+// omitted, in which case it defaults to false.
+boolean stageMetrics = ...;
+
+// Optionally, read deterministic input layers in place. If set to
+// true and value-type="numbers", each double[] layer will be wrapped
+// in a read-only matrix view rather than copied into a new matrix.
+// The caller must not modify these arrays until runSpan returns. This
+// parameter may be omitted, in which case it defaults to false.
+boolean zeroCopy = ...;
+
+// Optionally, checkpoint long SedimentTransport and
+// FloodWaterMovement runs. If checkpointFile is set, the simulation
+// state is saved to it every checkpointInterval seconds (default 600)
+// and the file is deleted once the carriers stop moving. If resume?
+// is true and checkpointFile exists, the run continues from the saved
+// state instead of starting over. These parameters may be omitted, in
+// which case no checkpoints are written.
+String  checkpointFile     = ...;
+Integer checkpointInterval = ...;
+boolean resume             = ...;
+
+// Optionally, run LineOfSight or Proximity (with valueType="numbers"
+// and downscalingFactor=1) one tile of tileSize x tileSize cells at a
+// time, so that only one tile's simulation state is held in memory.
+// The result layers are written as float64 rasters with .hdr sidecar
+// files to tileDir (a new temporary directory if omitted) and read
+// back from there. These parameters may be omitted, in which case the
+// whole grid is simulated at once.
+Integer tileSize           = ...;
+String  tileDir            = ...;
+
 // Pack all of the SPAN parameters into a HashMap.
 HashMap<String,Object> spanParams = new HashMap<String,Object>();
 spanParams.put("source-layer", sourceLayer);
@@ -223,6 +291,14 @@ spanParams.put("value-type", valueType);
 spanParams.put("flow-model", flowModel);
 spanParams.put("animation?", animation);
 spanParams.put("result-layers", resultLayers);
+spanParams.put("primitive-results?", primitiveResults);
+spanParams.put("stage-metrics?", stageMetrics);
+spanParams.put("zero-copy?", zeroCopy);
+spanParams.put("checkpoint-file", checkpointFile);
+spanParams.put("checkpoint-interval", checkpointInterval);
+spanParams.put("resume?", resume);
+spanParams.put("tile-size", tileSize);
+spanParams.put("tile-dir", tileDir);
 
 // Call clj_span.java_span.bridge's static runSpan method with these parameters.
 HashMap<String,Object> resultMap = clj_span.java_span_bridge.runSpan(spanParams);
@@ -236,13 +312,128 @@ HashMap<String,Object> resultMap = clj_span.java_span_bridge.runSpan(spanParams)
 // randvars: A 1D HashMap<Double,Double> array with keys representing
 //           discrete numeric states and values representing the
 //           probability distribution in each cell of the matrix.
+//           If primitive-results? was set to true, this will instead
+//           be a HashMap<String,Object> in compressed sparse row form
+//           with fields "offsets" (int[], one entry per cell plus
+//           one), "states" (double[]), and "probs" (double[]). The
+//           states and probabilities of cell i are stored in
+//           ascending state order from offsets[i] up to (but not
+//           including) offsets[i+1].
 //
 // varprop: A 1D HashMap<String,Double> array with fields "mean" and
 //          "var" containing the mean and variance values in each cell
-//          of the matrix.
+//          of the matrix. If primitive-results? was set to true, this
+//          will instead be a HashMap<String,Object> with fields
+//          "mean" and "var", each a 1D double array.
 //
 // numbers: A 1D Double array containing the deterministic values in
-//          each cell of the matrix.
+//          each cell of the matrix. If primitive-results? was set to
+//          true, this will be a 1D double array instead.
 //
 // All offsets into these arrays share the same x,y projection as that
 // used by the input layers.
+//
+// If stage-metrics? was set to true, the result map also contains the
+// key "stage-metrics", whose value is a List<HashMap<String,Object>>
+// with one entry per pipeline stage (in the order they ran) and fields
+// "stage" (String), "wall-ms", "cpu-ms", "allocated-bytes", and
+// "peak-heap-bytes". CPU time and allocated bytes are summed over all
+// JVM threads, and "cpu-ms" or "allocated-bytes" will be null if the
+// JVM cannot measure them. "peak-heap-bytes" is a process-wide
+// approximation: it is the sum of each heap pool's own peak during the
+// stage, which can exceed the true peak of the whole heap, and it
+// includes anything else the JVM was doing at the time. The same
+// metrics are also reported to the monitor via IMonitor.info as each
+// stage completes. If stage-metrics? is not set, no metrics are
+// measured at all.
+
+// Alternatively, the result layers may be streamed to an object
+// implementing clj_span.IResultSink rather than returned all at once.
+// Each requested layer is computed only when it is about to be sent,
+// so the caller can write it out and let it be garbage collected
+// before the next layer is computed. Note that each layer is still
+// computed whole before it is split into blocks, so the block size
+// only bounds the size of each array passed to writeRows.
+//
+// public interface IResultSink {
+//     void beginLayer(String label, int rows, int cols);
+//     void writeRows(String label, int firstRow, int numRows, Object values);
+//     void endLayer(String label);
+// }
+//
+// For each layer, beginLayer is called once, then writeRows is called
+// once per block of rows (in increasing firstRow order), and then
+// endLayer is called once. The values array holds offsets (firstRow *
+// cols) through ((firstRow + numRows) * cols - 1) of the complete
+// layer and has the same element type as described above for the
+// result map.
+
+// Optionally, set the number of rows sent in each block. This
+// parameter may be omitted, in which case each layer is sent as a
+// single block.
+int resultBlockRows = ...;
+
+spanParams.put("result-block-rows", resultBlockRows);
+
+IResultSink resultSink = ...;
+
+clj_span.java_span_bridge.runSpan(spanParams, resultSink);
+
+// Both runSpan methods have asynchronous counterparts which take the
+// same arguments, run the simulation on an executor, and immediately
+// return a java.util.concurrent.Future.
+//
+// Optionally, choose the executor on which the simulation will run.
+// This parameter may be omitted, in which case Clojure's send-off
+// thread pool is used.
+java.util.concurrent.Executor executor = ...;
+
+spanParams.put("executor", executor);
+
+Future<HashMap<String,Object>> futureResults = clj_span.java_span_bridge.runSpanAsync(spanParams);
+Future<Object>                 futureDone    = clj_span.java_span_bridge.runSpanAsync(spanParams, resultSink);
+
+// Calling cancel() on the Future causes the monitor seen by the flow
+// model to report isStopped() == true, so the simulation terminates
+// at its next chunk boundary (e.g. after the current source point,
+// view line, or timestep). If a monitor was supplied, progress is
+// reported through IMonitor.defineProgressSteps and
+// IMonitor.addProgress as each stage of the run completes. If no
+// monitor was supplied, any error is rethrown from Future.get() as an
+// ExecutionException.
+
+// When several flow models (or parameter variants) will be run over
+// the same input layers, create a session once. This unpacks,
+// resamples, and thresholds the layers and finds the source, sink,
+// and use points a single time. The session is an opaque object.
+Object spanSession = clj_span.java_span_bridge.createSession(spanParams);
+
+// Then run the session as many times as needed. The overrides map may
+// only contain these keys (all optional): "flow-model",
+// "trans-threshold", "source-type", "sink-type", "use-type",
+// "benefit-type", "animation?", "monitor", "result-layers",
+// "primitive-results?", "stage-metrics?", "result-block-rows",
+// "checkpoint-file", "checkpoint-interval", and "resume?". Any other
+// key throws an exception, since changing it would require
+// preprocessing the layers again.
+HashMap<String,Object> overrides = new HashMap<String,Object>();
+overrides.put("flow-model", "LineOfSight");
+overrides.put("result-layers", resultLayers);
+
+HashMap<String,Object> sessionResults = clj_span.java_span_bridge.runSession(spanSession, overrides);
+clj_span.java_span_bridge.runSession(spanSession, overrides, resultSink);
+
+// To evaluate many scenarios which differ in only a few parameters
+// (e.g. the source or use layer), run them as a batch. Each scenario
+// is a HashMap of parameters which replace those in spanParams. Layer
+// arrays which are the same object in several scenarios are only
+// unpacked and preprocessed once. At most maxConcurrency scenarios run
+// at once. The returned Iterator yields one result map per scenario,
+// in order, and scenarios beyond the concurrency limit are only
+// started as the caller consumes the Iterator. Scenarios may also use
+// different "value-type"s and "rv-max-states", since each run has its
+// own math context.
+List<HashMap<String,Object>> scenarios = ...;
+int maxConcurrency = ...;
+
+Iterator<HashMap<String,Object>> batchResults = clj_span.java_span_bridge.runSpanBatch(spanParams, scenarios, maxConcurrency);
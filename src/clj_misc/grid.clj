@@ -0,0 +1,962 @@
+;;; Copyright 2010-2013 Gary Johnson
+;;;
+;;; This file is part of clj-misc.
+;;;
+;;; clj-misc is free software: you can redistribute it and/or modify
+;;; it under the terms of the GNU General Public License as published
+;;; by the Free Software Foundation, either version 3 of the License,
+;;; or (at your option) any later version.
+;;;
+;;; clj-misc is distributed in the hope that it will be useful, but
+;;; WITHOUT ANY WARRANTY; without even the implied warranty of
+;;; MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+;;; General Public License for more details.
+;;;
+;;; You should have received a copy of the GNU General Public License
+;;; along with clj-misc.  If not, see <http://www.gnu.org/licenses/>.
+;;;
+;;;-------------------------------------------------------------------
+;;;
+;;; This namespace defines read-only matrix views over flat,
+;;; row-major primitive arrays. A grid answers count, nth, get, get-in
+;;; and seq just like a vector of vectors, so it can be handed to the
+;;; functions in clj-misc.matrix-ops and to the SPAN flow models
+;;; without first copying its contents into persistent vectors.
+;;;
+;;; Dense grids hold every cell in one flat array: a double[] when
+;;; all of their values are doubles and an Object[] otherwise (e.g.,
+;;; for randvars, varprop values, or refs). clj-misc.matrix-ops builds
+;;; all of its matrices this way, and any cell may be read by its
+;;; packed index i * cols + j with nth-cell. Dense (and sparse) grids
+;;; compare equal to, and hash like, the vectors of vectors they stand
+;;; for.
+;;;
+;;; Grids may also be backed by raw binary raster files, which are
+;;; memory-mapped and read in place rather than loaded onto the heap.
+;;; A window grid is a view of a rectangle of cells of any other
+;;; matrix, which is likewise read in place.
+;;;
+;;; Accumulator grids hold one double per cell in an AtomicLongArray
+;;; and are summed into with compare-and-set, so that many threads may
+;;; add to them without the overhead of one ref per cell.
+;;;
+;;; Finally, sparse grids store only their non-zero cells, as a sorted
+;;; long[] of packed cell ids and a parallel array of values, so that
+;;; mostly-zero layers take O(nnz) memory and their non-zero cells may
+;;; be visited without scanning the whole grid.
+;;;
+;;; Cell sets hold a set of [i j] points as one bit per cell of a
+;;; grid, keyed by the same packed cell ids, for the read-only
+;;; feature tests (e.g., in-stream? or levee?) which the flow models
+;;; call on every step.
+
+(ns clj-misc.grid
+  (:use [clj-misc.utils :only (p parallel-blocks)])
+  (:require [clojure.java.io :as io]
+            [clojure.string  :as s])
+  (:import (java.io RandomAccessFile)
+           (java.util Arrays BitSet)
+           (java.util.concurrent.atomic AtomicLongArray)
+           (java.nio ByteBuffer ByteOrder)
+           (java.nio.channels FileChannel FileChannel$MapMode)))
+
+(deftype GridRow [^doubles data ^long offset ^long cols nan-as-zero? ^:unsynchronized-mutable ^int hasheq-cache]
+  clojure.lang.Counted
+  (count [_] cols)
+
+  clojure.lang.Indexed
+  (nth [_ j]
+    (if (and (>= j 0) (< j cols))
+      (let [v (aget data (+ offset j))]
+        (if (and nan-as-zero? (Double/isNaN v)) 0.0 v))
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this j not-found]
+    (if (and (>= j 0) (< j cols))
+      (.nth this j)
+      not-found))
+
+  clojure.lang.ILookup
+  (valAt [this j] (.valAt this j nil))
+  (valAt [this j not-found]
+    (if (integer? j)
+      (.nth this (int j) not-found)
+      not-found))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (when (pos? cols)
+      (map #(.nth this (int %)) (range cols))))
+
+  clojure.lang.IHashEq
+  (hasheq [this]
+    (if (zero? hasheq-cache)
+      (set! hasheq-cache (int (hash-ordered-coll (or (seq this) ())))))
+    hasheq-cache)
+
+  Object
+  (equals [this o] (and (sequential? o) (= (seq this) (seq o))))
+  (hashCode [this] (.hashCode ^Object (vec (seq this)))))
+
+(deftype DoubleGrid [^doubles data ^long rows ^long cols flip? nan-as-zero? ^:unsynchronized-mutable ^int hasheq-cache]
+  clojure.lang.Counted
+  (count [_] rows)
+
+  clojure.lang.Indexed
+  (nth [_ i]
+    (if (and (>= i 0) (< i rows))
+      (GridRow. data
+                (* cols (if flip? (- rows i 1) i))
+                cols
+                nan-as-zero?
+                0)
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this i not-found]
+    (if (and (>= i 0) (< i rows))
+      (.nth this i)
+      not-found))
+
+  clojure.lang.ILookup
+  (valAt [this i] (.valAt this i nil))
+  (valAt [this i not-found]
+    (if (integer? i)
+      (.nth this (int i) not-found)
+      not-found))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (when (pos? rows)
+      (map #(.nth this (int %)) (range rows))))
+
+  clojure.lang.IHashEq
+  (hasheq [this]
+    (if (zero? hasheq-cache)
+      (set! hasheq-cache (int (hash-ordered-coll (or (seq this) ())))))
+    hasheq-cache)
+
+  Object
+  (equals [this o] (and (sequential? o) (= (seq this) (seq o))))
+  (hashCode [this] (.hashCode ^Object (vec (seq this)))))
+
+(deftype ObjectGridRow [^objects data ^long offset ^long cols ^:unsynchronized-mutable ^int hasheq-cache]
+  clojure.lang.Counted
+  (count [_] cols)
+
+  clojure.lang.Indexed
+  (nth [_ j]
+    (if (and (>= j 0) (< j cols))
+      (aget data (+ offset j))
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this j not-found]
+    (if (and (>= j 0) (< j cols))
+      (.nth this j)
+      not-found))
+
+  clojure.lang.ILookup
+  (valAt [this j] (.valAt this j nil))
+  (valAt [this j not-found]
+    (if (integer? j)
+      (.nth this (int j) not-found)
+      not-found))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (when (pos? cols)
+      (map #(.nth this (int %)) (range cols))))
+
+  clojure.lang.IHashEq
+  (hasheq [this]
+    (if (zero? hasheq-cache)
+      (set! hasheq-cache (int (hash-ordered-coll (or (seq this) ())))))
+    hasheq-cache)
+
+  Object
+  (equals [this o] (and (sequential? o) (= (seq this) (seq o))))
+  (hashCode [this] (.hashCode ^Object (vec (seq this)))))
+
+(deftype ObjectGrid [^objects data ^long rows ^long cols ^:unsynchronized-mutable ^int hasheq-cache]
+  clojure.lang.Counted
+  (count [_] rows)
+
+  clojure.lang.Indexed
+  (nth [_ i]
+    (if (and (>= i 0) (< i rows))
+      (ObjectGridRow. data (* cols i) cols 0)
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this i not-found]
+    (if (and (>= i 0) (< i rows))
+      (.nth this i)
+      not-found))
+
+  clojure.lang.ILookup
+  (valAt [this i] (.valAt this i nil))
+  (valAt [this i not-found]
+    (if (integer? i)
+      (.nth this (int i) not-found)
+      not-found))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (when (pos? rows)
+      (map #(.nth this (int %)) (range rows))))
+
+  clojure.lang.IHashEq
+  (hasheq [this]
+    (if (zero? hasheq-cache)
+      (set! hasheq-cache (int (hash-ordered-coll (or (seq this) ())))))
+    hasheq-cache)
+
+  Object
+  (equals [this o] (and (sequential? o) (= (seq this) (seq o))))
+  (hashCode [this] (.hashCode ^Object (vec (seq this)))))
+
+(deftype MappedGridRow [^ByteBuffer buf ^long offset ^long cols ^long nbytes ^double nodata]
+  clojure.lang.Counted
+  (count [_] cols)
+
+  clojure.lang.Indexed
+  (nth [_ j]
+    (if (and (>= j 0) (< j cols))
+      (let [index (* nbytes (+ offset j))
+            v     (if (== nbytes 8)
+                    (.getDouble buf (int index))
+                    (double (.getFloat buf (int index))))]
+        (if (or (Double/isNaN v) (== v nodata)) 0.0 v))
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this j not-found]
+    (if (and (>= j 0) (< j cols))
+      (.nth this j)
+      not-found))
+
+  clojure.lang.ILookup
+  (valAt [this j] (.valAt this j nil))
+  (valAt [this j not-found]
+    (if (integer? j)
+      (.nth this (int j) not-found)
+      not-found))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (when (pos? cols)
+      (map #(.nth this (int %)) (range cols)))))
+
+;; A single MappedByteBuffer cannot exceed 2GB, so the file is mapped
+;; as a vector of segments, each holding rows-per-segment whole rows.
+(deftype MappedGrid [segments ^long rows-per-segment ^long rows ^long cols ^long nbytes ^double nodata]
+  clojure.lang.Counted
+  (count [_] rows)
+
+  clojure.lang.Indexed
+  (nth [_ i]
+    (if (and (>= i 0) (< i rows))
+      (MappedGridRow. (nth segments (quot i rows-per-segment))
+                      (* cols (rem i rows-per-segment))
+                      cols
+                      nbytes
+                      nodata)
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this i not-found]
+    (if (and (>= i 0) (< i rows))
+      (.nth this i)
+      not-found))
+
+  clojure.lang.ILookup
+  (valAt [this i] (.valAt this i nil))
+  (valAt [this i not-found]
+    (if (integer? i)
+      (.nth this (int i) not-found)
+      not-found))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (when (pos? rows)
+      (map #(.nth this (int %)) (range rows)))))
+
+(deftype WindowRow [row ^long j0 ^long cols]
+  clojure.lang.Counted
+  (count [_] cols)
+
+  clojure.lang.Indexed
+  (nth [_ j]
+    (if (and (>= j 0) (< j cols))
+      (nth row (+ j0 j))
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this j not-found]
+    (if (and (>= j 0) (< j cols))
+      (.nth this j)
+      not-found))
+
+  clojure.lang.ILookup
+  (valAt [this j] (.valAt this j nil))
+  (valAt [this j not-found]
+    (if (integer? j)
+      (.nth this (int j) not-found)
+      not-found))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (when (pos? cols)
+      (map #(.nth this (int %)) (range cols))))
+
+  clojure.lang.IHashEq
+  (hasheq [this] (hash-ordered-coll (or (seq this) ())))
+
+  Object
+  (equals [this o] (and (sequential? o) (= (seq this) (seq o))))
+  (hashCode [this] (.hashCode ^Object (vec (seq this)))))
+
+(deftype GridWindow [matrix ^long i0 ^long j0 ^long rows ^long cols]
+  clojure.lang.Counted
+  (count [_] rows)
+
+  clojure.lang.Indexed
+  (nth [_ i]
+    (if (and (>= i 0) (< i rows))
+      (WindowRow. (nth matrix (+ i0 i)) j0 cols)
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this i not-found]
+    (if (and (>= i 0) (< i rows))
+      (.nth this i)
+      not-found))
+
+  clojure.lang.ILookup
+  (valAt [this i] (.valAt this i nil))
+  (valAt [this i not-found]
+    (if (integer? i)
+      (.nth this (int i) not-found)
+      not-found))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (when (pos? rows)
+      (map #(.nth this (int %)) (range rows))))
+
+  clojure.lang.IHashEq
+  (hasheq [this] (hash-ordered-coll (or (seq this) ())))
+
+  Object
+  (equals [this o] (and (sequential? o) (= (seq this) (seq o))))
+  (hashCode [this] (.hashCode ^Object (vec (seq this)))))
+
+(deftype AccumulatorCell [^AtomicLongArray bits ^long index]
+  clojure.lang.IDeref
+  (deref [_] (Double/longBitsToDouble (.get bits (int index)))))
+
+(deftype AccumulatorRow [^AtomicLongArray bits ^long offset ^long cols]
+  clojure.lang.Counted
+  (count [_] cols)
+
+  clojure.lang.Indexed
+  (nth [_ j]
+    (if (and (>= j 0) (< j cols))
+      (AccumulatorCell. bits (+ offset j))
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this j not-found]
+    (if (and (>= j 0) (< j cols))
+      (.nth this j)
+      not-found))
+
+  clojure.lang.ILookup
+  (valAt [this j] (.valAt this j nil))
+  (valAt [this j not-found]
+    (if (integer? j)
+      (.nth this (int j) not-found)
+      not-found))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (when (pos? cols)
+      (map #(.nth this (int %)) (range cols)))))
+
+;; Looking up a cell returns a derefable AccumulatorCell, so an
+;; accumulator grid may be read just like a matrix of refs.
+(deftype AccumulatorGrid [^AtomicLongArray bits ^long rows ^long cols]
+  clojure.lang.Counted
+  (count [_] rows)
+
+  clojure.lang.Indexed
+  (nth [_ i]
+    (if (and (>= i 0) (< i rows))
+      (AccumulatorRow. bits (* i cols) cols)
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this i not-found]
+    (if (and (>= i 0) (< i rows))
+      (.nth this i)
+      not-found))
+
+  clojure.lang.ILookup
+  (valAt [this i] (.valAt this i nil))
+  (valAt [this i not-found]
+    (if (integer? i)
+      (.nth this (int i) not-found)
+      not-found))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (when (pos? rows)
+      (map #(.nth this (int %)) (range rows)))))
+
+;; Cell [i j] is stored under the packed id i * cols + j. Its value is
+;; in dvals if the grid holds doubles and in ovals otherwise.
+;; row-starts holds the index in ids of the first stored cell of each
+;; row (plus the total count at the end), so a lookup only
+;; binary-searches its own row.
+(deftype SparseGridRow [^longs ids ^doubles dvals ^objects ovals zero ^long start ^long end ^long base ^long cols
+                        ^:unsynchronized-mutable ^int hasheq-cache]
+  clojure.lang.Counted
+  (count [_] cols)
+
+  clojure.lang.Indexed
+  (nth [_ j]
+    (if (and (>= j 0) (< j cols))
+      (let [k (Arrays/binarySearch ids (int start) (int end) (+ base j))]
+        (cond (neg? k) zero
+              dvals    (aget dvals k)
+              :else    (aget ovals k)))
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this j not-found]
+    (if (and (>= j 0) (< j cols))
+      (.nth this j)
+      not-found))
+
+  clojure.lang.ILookup
+  (valAt [this j] (.valAt this j nil))
+  (valAt [this j not-found]
+    (if (integer? j)
+      (.nth this (int j) not-found)
+      not-found))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (when (pos? cols)
+      (map #(.nth this (int %)) (range cols))))
+
+  clojure.lang.IHashEq
+  (hasheq [this]
+    (if (zero? hasheq-cache)
+      (set! hasheq-cache (int (hash-ordered-coll (or (seq this) ())))))
+    hasheq-cache)
+
+  Object
+  (equals [this o] (and (sequential? o) (= (seq this) (seq o))))
+  (hashCode [this] (.hashCode ^Object (vec (seq this)))))
+
+(deftype SparseGrid [^longs ids ^doubles dvals ^objects ovals ^ints row-starts zero ^long rows ^long cols
+                     ^:unsynchronized-mutable ^int hasheq-cache]
+  clojure.lang.Counted
+  (count [_] rows)
+
+  clojure.lang.Indexed
+  (nth [_ i]
+    (if (and (>= i 0) (< i rows))
+      (SparseGridRow. ids dvals ovals zero
+                      (aget row-starts i)
+                      (aget row-starts (inc i))
+                      (* i cols)
+                      cols
+                      0)
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this i not-found]
+    (if (and (>= i 0) (< i rows))
+      (.nth this i)
+      not-found))
+
+  clojure.lang.ILookup
+  (valAt [this i] (.valAt this i nil))
+  (valAt [this i not-found]
+    (if (integer? i)
+      (.nth this (int i) not-found)
+      not-found))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (when (pos? rows)
+      (map #(.nth this (int %)) (range rows))))
+
+  clojure.lang.IHashEq
+  (hasheq [this]
+    (if (zero? hasheq-cache)
+      (set! hasheq-cache (int (hash-ordered-coll (or (seq this) ())))))
+    hasheq-cache)
+
+  Object
+  (equals [this o] (and (sequential? o) (= (seq this) (seq o))))
+  (hashCode [this] (.hashCode ^Object (vec (seq this)))))
+
+(deftype CellSet [^BitSet bits ^long rows ^long cols ^long n ^:unsynchronized-mutable ^int hasheq-cache]
+  clojure.lang.IPersistentSet
+  (contains [_ id]
+    (and (instance? clojure.lang.Sequential id)
+         (== (count id) 2)
+         (let [i (nth id 0)
+               j (nth id 1)]
+           (and (integer? i) (integer? j)
+                (let [i (long i)
+                      j (long j)]
+                  (and (>= i 0) (< i rows) (>= j 0) (< j cols)
+                       (.get bits (int (+ (* i cols) j)))))))))
+  (get [this id] (if (.contains this id) id))
+  (disjoin [this id] (disj (set (seq this)) id))
+  (cons [this id] (conj (set (seq this)) id))
+  (empty [_] #{})
+  (equiv [this o]
+    (and (instance? java.util.Set o)
+         (== n (.size ^java.util.Set o))
+         (every? #(.contains this %) o)))
+  (count [_] n)
+  (seq [_]
+    (letfn [(step [^long k]
+              (let [k (.nextSetBit bits (int k))]
+                (when (>= k 0)
+                  (cons [(quot k cols) (rem k cols)]
+                        (lazy-seq (step (inc k)))))))]
+      (step 0)))
+
+  clojure.lang.IFn
+  (invoke [this id] (.get this id))
+  (applyTo [this args] (clojure.lang.AFn/applyToHelper this args))
+
+  clojure.lang.IHashEq
+  (hasheq [this]
+    (if (zero? hasheq-cache)
+      (set! hasheq-cache (int (hash-unordered-coll (seq this)))))
+    hasheq-cache)
+
+  java.util.Set
+  (size [_] n)
+  (isEmpty [_] (zero? n))
+  (containsAll [this c] (every? #(.contains this %) c))
+  (iterator [this] (let [^java.util.Collection ids (or (seq this) ())]
+                      (.iterator ids)))
+  (^objects toArray [this] (object-array (seq this)))
+  (^objects toArray [this ^objects a] (.toArray ^java.util.Collection (vec (seq this)) a))
+  (add [_ _] (throw (UnsupportedOperationException.)))
+  (remove [_ _] (throw (UnsupportedOperationException.)))
+  (addAll [_ _] (throw (UnsupportedOperationException.)))
+  (removeAll [_ _] (throw (UnsupportedOperationException.)))
+  (retainAll [_ _] (throw (UnsupportedOperationException.)))
+  (clear [_] (throw (UnsupportedOperationException.)))
+
+  Object
+  (equals [this o] (.equiv this o))
+  (hashCode [this] (reduce (fn [h id] (unchecked-add-int (int h) (int (.hashCode ^Object id))))
+                            (int 0)
+                            (seq this))))
+
+;; Dense grids replace the vectors of vectors that matrices used to
+;; be, so they print like them too.
+(defmethod print-method DoubleGrid [grid ^java.io.Writer w] (print-method (mapv (comp vec seq) grid) w))
+(defmethod print-method ObjectGrid [grid ^java.io.Writer w] (print-method (mapv (comp vec seq) grid) w))
+(defmethod print-method GridWindow [grid ^java.io.Writer w] (print-method (mapv (comp vec seq) grid) w))
+
+(defn grid?
+  [matrix]
+  (or (instance? DoubleGrid matrix)
+      (instance? ObjectGrid matrix)
+      (instance? MappedGrid matrix)
+      (instance? SparseGrid matrix)
+      (instance? GridWindow matrix)))
+
+(defn dense-grid?
+  [matrix]
+  (or (instance? DoubleGrid matrix)
+      (instance? ObjectGrid matrix)))
+
+(defn wrap-double-array
+  "Returns a rows x cols matrix view over the row-major double[]
+   data. No values are copied, so the caller must not modify data
+   while the view is in use. NaN cells are read as 0.0. If flip? is
+   true, row 0 of the view is the last row of data, matching the
+   bottom-up row order used by the Java bridge."
+  ([rows cols data]
+     (wrap-double-array rows cols false data))
+  ([rows cols flip? ^doubles data]
+     {:pre [(== (alength data) (* rows cols))]}
+     (DoubleGrid. data (long rows) (long cols) (boolean flip?) true 0)))
+
+(defn- pack-cells
+  "Returns a rows x cols dense grid holding the row-major values in
+   cells. If every value is a Double, they are copied into a double[]
+   and otherwise cells itself is used."
+  [rows cols ^objects cells]
+  (let [n (alength cells)]
+    (if (loop [k 0]
+          (or (== k n)
+              (and (instance? Double (aget cells k))
+                   (recur (inc k)))))
+      (let [data (double-array n)]
+        (dotimes [k n]
+          (aset data k (double (aget cells k))))
+        (DoubleGrid. data (long rows) (long cols) false false 0))
+      (ObjectGrid. cells (long rows) (long cols) 0))))
+
+(defn- fill-cells!
+  [^objects cells ^long cols val-fn rows]
+  (doseq [i rows]
+    (let [offset (* (long i) cols)]
+      (dotimes [j cols]
+        (aset cells (+ offset j) (val-fn [i j]))))))
+
+(defn make-grid
+  "Creates a rows x cols dense grid whose values are generated by
+   calling val-fn on the [i j] coordinate pair in row-major order. If
+   every value is a Double, the grid is backed by a flat double[] and
+   otherwise by a flat Object[]. Unlike wrap-double-array, NaN values
+   are kept as they are."
+  [rows cols val-fn]
+  (let [cells (object-array (* rows cols))]
+    (fill-cells! cells cols val-fn (range rows))
+    (pack-cells rows cols cells)))
+
+(defn make-grid-parallel
+  "Like make-grid, but generates blocks of rows in parallel (see
+   clj-misc.utils/parallel-blocks), so val-fn must be safe to call
+   from several threads at once."
+  [rows cols val-fn]
+  (let [cells (object-array (* rows cols))]
+    (dorun (parallel-blocks rows (p fill-cells! cells cols val-fn)))
+    (pack-cells rows cols cells)))
+
+(defn seq2grid
+  "Creates a rows x cols dense grid (see make-grid) whose values are
+   the successive elements of aseq."
+  [rows cols aseq]
+  (let [cells (object-array aseq)]
+    (if (not= (alength cells) (* rows cols))
+      (throw (Exception. (str "A " rows " x " cols " grid needs exactly " (* rows cols) " values."))))
+    (pack-cells rows cols cells)))
+
+(defn window-grid
+  "Returns a rows x cols view of the cells of matrix (any matrix, such
+   as a dense, mapped, or sparse grid) with its top-left cell at [i0
+   j0]. No cells are copied, so the view reads matrix in place."
+  [matrix [i0 j0 rows cols]]
+  (let [i0   (long i0)
+        j0   (long j0)
+        rows (long rows)
+        cols (long cols)]
+    (if (or (neg? i0) (neg? j0) (neg? rows) (neg? cols)
+            (> (+ i0 rows) (count matrix))
+            (and (pos? rows) (> (+ j0 cols) (count (first matrix)))))
+      (throw (Exception. (str "The window " [i0 j0 rows cols] " does not fit inside the matrix."))))
+    (if (instance? GridWindow matrix)
+      (let [^GridWindow window matrix]
+        (GridWindow. (.matrix window) (+ i0 (.i0 window)) (+ j0 (.j0 window)) rows cols))
+      (GridWindow. matrix i0 j0 rows cols))))
+
+(defn nth-cell
+  "Returns the value of the cell of matrix at the packed index i *
+   cols + j. Dense grids read it straight from their backing array."
+  [matrix ^long index]
+  (cond (and (instance? DoubleGrid matrix)
+             (not (.flip? ^DoubleGrid matrix)))
+        (let [v (aget ^doubles (.data ^DoubleGrid matrix) index)]
+          (if (and (.nan-as-zero? ^DoubleGrid matrix) (Double/isNaN v)) 0.0 v))
+
+        (instance? ObjectGrid matrix)
+        (aget ^objects (.data ^ObjectGrid matrix) index)
+
+        :otherwise
+        (let [cols (count (first matrix))]
+          (get-in matrix [(quot index cols) (rem index cols)]))))
+
+(defn double-cell
+  "Returns the cell [i j] of the numeric matrix as a primitive
+   double. The cells of a DoubleGrid are read straight from its
+   backing array, so no boxing or coordinate vectors are needed."
+  ^double [matrix ^long i ^long j]
+  (if (instance? DoubleGrid matrix)
+    (let [^DoubleGrid grid matrix
+          row             (if (.flip? grid) (- (.rows grid) i 1) i)
+          v               (aget ^doubles (.data grid) (+ (* row (.cols grid)) j))]
+      (if (and (.nan-as-zero? grid) (Double/isNaN v)) 0.0 v))
+    (double (get-in matrix [i j]))))
+
+(defn grid-values
+  "Returns the values of matrix in row-major order. Dense grids which
+   are not flipped are read straight from their backing array."
+  [matrix]
+  (cond (and (instance? DoubleGrid matrix)
+             (not (.flip? ^DoubleGrid matrix)))
+        (let [data (seq (.data ^DoubleGrid matrix))]
+          (if (.nan-as-zero? ^DoubleGrid matrix)
+            (map #(if (Double/isNaN %) 0.0 %) data)
+            data))
+
+        (instance? ObjectGrid matrix)
+        (seq (.data ^ObjectGrid matrix))
+
+        :otherwise
+        (apply concat matrix)))
+
+(defn make-accumulator-grid
+  "Returns a rows x cols accumulator grid with all cells set to 0.0."
+  [rows cols]
+  (AccumulatorGrid. (AtomicLongArray. (int (* rows cols))) (long rows) (long cols)))
+
+(defn accumulator-grid?
+  [matrix]
+  (instance? AccumulatorGrid matrix))
+
+(defn accumulate-in!
+  "Adds x to the cell at id ([i j]) of layer. If layer is an
+   accumulator grid, x is added immediately with compare-and-set and f
+   is ignored (it must be addition). Otherwise, layer must be a matrix
+   of refs, and (commute ref f x) is called on the cell's ref, so this
+   must be called inside a transaction. Accumulator grid updates are
+   not rolled back if a transaction retries (which even one that only
+   commutes may do), so they should be made outside of any
+   transaction. accumulate-all-in! does this for either kind of
+   layer."
+  [layer [i j] f x]
+  (if (instance? AccumulatorGrid layer)
+    (let [^AtomicLongArray bits (.bits ^AccumulatorGrid layer)
+          index                 (int (+ (* (long i) (.cols ^AccumulatorGrid layer)) (long j)))
+          x                     (double x)]
+      (loop []
+        (let [old-bits (.get bits index)
+              new-bits (Double/doubleToRawLongBits (+ (Double/longBitsToDouble old-bits) x))]
+          (if-not (.compareAndSet bits index old-bits new-bits)
+            (recur)))))
+    (commute (get-in layer [i j]) f x)))
+
+(defn accumulate-all-in!
+  "Adds x to each cell of ids in layer with accumulate-in!. An
+   accumulator grid is updated in place, so this must not be called
+   inside a transaction. A matrix of refs is updated in one
+   transaction of its own."
+  [layer ids f x]
+  (if (instance? AccumulatorGrid layer)
+    (doseq [id ids]
+      (accumulate-in! layer id f x))
+    (dosync
+     (doseq [id ids]
+       (accumulate-in! layer id f x)))))
+
+(defn reset-in!
+  "Sets the cell at id ([i j]) of layer to x. If layer is a matrix of
+   refs, this must be called inside a transaction."
+  [layer [i j] x]
+  (if (instance? AccumulatorGrid layer)
+    (.set ^AtomicLongArray (.bits ^AccumulatorGrid layer)
+          (int (+ (* (long i) (.cols ^AccumulatorGrid layer)) (long j)))
+          (Double/doubleToRawLongBits (double x)))
+    (ref-set (get-in layer [i j]) x)))
+
+(defn make-sparse-grid
+  "Creates a rows x cols sparse grid whose values are generated by
+   calling val-fn on the [i j] coordinate pair, just like
+   clj-misc.matrix-ops/make-matrix. Only those values which are not=
+   zero are stored, and all other cells read as zero. If zero is a
+   double, the values are stored in a double[] and otherwise in an
+   Object[]. Blocks of rows are generated in parallel (see
+   clj-misc.utils/parallel-blocks), so val-fn must be safe to call
+   from several threads at once."
+  [zero rows cols val-fn]
+  (let [blocks     (vec (parallel-blocks
+                         rows
+                         (fn [block]
+                           (let [[starts ids vals]
+                                 (reduce (fn [[starts ids vals] i]
+                                           (let [starts     (conj starts (count ids))
+                                                 [ids vals] (reduce (fn [[ids vals :as acc] j]
+                                                                      (let [x (val-fn [i j])]
+                                                                        (if (= zero x)
+                                                                          acc
+                                                                          [(conj! ids (+ (* i cols) j)) (conj! vals x)])))
+                                                                    [ids vals]
+                                                                    (range cols))]
+                                             [starts ids vals]))
+                                         [[] (transient []) (transient [])]
+                                         block)]
+                             [starts (persistent! ids) (persistent! vals)]))))
+        ids        (vec (mapcat second blocks))
+        vals       (vec (mapcat #(nth % 2) blocks))
+        row-starts (int-array (concat (first (reduce (fn [[row-starts offset] [starts block-ids]]
+                                                       [(into row-starts (map #(+ offset %) starts))
+                                                        (+ offset (count block-ids))])
+                                                     [[] 0]
+                                                     blocks))
+                                      [(count ids)]))]
+    (SparseGrid. (long-array ids)
+                 (if (instance? Double zero) (double-array vals))
+                 (if-not (instance? Double zero) (object-array vals))
+                 row-starts
+                 zero
+                 (long rows)
+                 (long cols)
+                 0)))
+
+(defn sparse-grid?
+  [matrix]
+  (instance? SparseGrid matrix))
+
+(defn sparse-coords
+  "Returns the [i j] coordinates of the stored (non-zero) cells of a
+   sparse grid in row-major order."
+  [^SparseGrid grid]
+  (let [cols (.cols grid)]
+    (map (fn [^long id] [(quot id cols) (rem id cols)]) (.ids grid))))
+
+(defn sparse-values
+  "Returns the stored (non-zero) values of a sparse grid in row-major
+   order."
+  [^SparseGrid grid]
+  (seq (or (.dvals grid) (.ovals grid))))
+
+(defn make-cell-set
+  "Returns a read-only set of the [i j] cells of a rows x cols grid
+   whose packed indexes i * cols + j are in indexes. It is stored as
+   one bit per cell, so membership tests need neither hashing nor
+   equality checks on coordinate vectors. Like any other set, it may
+   be called as a predicate on [i j] points and seq'd (in row-major
+   order), and conj and disj on it return ordinary hash-sets. Any
+   sequential pair of integers (e.g., [i j] or (i j)) is a point, just
+   as it would be found in a hash-set of [i j] vectors."
+  [rows cols indexes]
+  (let [bits (BitSet. (* rows cols))]
+    (doseq [index indexes]
+      (if (< -1 index (* rows cols))
+        (.set bits (int index))
+        (throw (Exception. (str "Cell index " index " is outside of a " rows " x " cols " grid.")))))
+    (CellSet. bits (long rows) (long cols) (.cardinality bits) (int 0))))
+
+(defn cell-set?
+  [x]
+  (instance? CellSet x))
+
+(defn raster-header-file
+  "Returns the sidecar header file for the raster data file filename,
+   which has the same name with its extension replaced by .hdr."
+  [filename]
+  (io/file (s/replace-first (str filename) #"(\.[^./\\]*)?$" ".hdr")))
+
+(defn raster-file?
+  "Returns true if filename is a readable raster data file with a
+   readable sidecar header."
+  [filename]
+  (and (.canRead (io/file filename))
+       (.canRead ^java.io.File (raster-header-file filename))))
+
+(defn read-raster-header
+  "Reads the sidecar header of the raster data file filename. The
+   header is a text file of whitespace-separated key value lines
+   (keys are case-insensitive) in the style of an ESRI .hdr file:
+
+     nrows        <integer>
+     ncols        <integer>
+     cellsize     <double>   (or cellwidth and cellheight)
+     nodata_value <double>   (optional)
+     nbits        <32|64>    (optional, defaults to 32)
+     byteorder    <LSBFIRST> (optional, defaults to LSBFIRST)
+
+   Returns a map of {:rows :cols :cell-width :cell-height :nodata
+   :nbits}."
+  [filename]
+  (let [header (into {}
+                     (for [line  (s/split-lines (slurp (raster-header-file filename)))
+                           :let  [[k v] (s/split (s/trim line) #"\s+")]
+                           :when (and k v)]
+                       [(s/lower-case k) v]))
+        number (fn [k & [default]]
+                 (if-let [v (header k)] (Double/parseDouble v) default))]
+    (if-not (and (header "nrows") (header "ncols"))
+      (throw (Exception. (str "Raster header for " filename " must define nrows and ncols."))))
+    (if-not (#{"32" "64"} (header "nbits" "32"))
+      (throw (Exception. (str "Raster header for " filename " must have nbits of 32 or 64."))))
+    (if-not (#{"lsbfirst" "i"} (s/lower-case (header "byteorder" "lsbfirst")))
+      (throw (Exception. (str "Raster " filename " must be stored in little-endian (LSBFIRST) byte order."))))
+    {:rows        (Long/parseLong (header "nrows"))
+     :cols        (Long/parseLong (header "ncols"))
+     :cell-width  (number "cellwidth"  (number "cellsize"))
+     :cell-height (number "cellheight" (number "cellsize"))
+     :nodata      (number "nodata_value" Double/NaN)
+     :nbits       (Long/parseLong (header "nbits" "32"))}))
+
+(defn map-raster-file
+  "Memory-maps the raw little-endian float32 or float64 raster data
+   file filename (described by its sidecar header, see
+   read-raster-header) and returns a read-only matrix view over it.
+   Rows are stored top row first. NaN and nodata cells are read as
+   0.0. The file's contents are paged in by the OS as they are read,
+   so the raster need not fit on the heap."
+  [filename]
+  (let [{:keys [rows cols nodata nbits]} (read-raster-header filename)
+        nbytes           (quot nbits 8)
+        row-bytes        (* cols nbytes)
+        rows-per-segment (max 1 (quot Integer/MAX_VALUE row-bytes))]
+    (with-open [file (RandomAccessFile. (io/file filename) "r")]
+      (let [channel (.getChannel file)]
+        (if (not= (.size channel) (* rows row-bytes))
+          (throw (Exception. (str "Raster " filename " must contain exactly nrows * ncols * nbits/8 bytes."))))
+        (MappedGrid. (vec (for [first-row (range 0 rows rows-per-segment)]
+                            (-> channel
+                                (.map FileChannel$MapMode/READ_ONLY
+                                      (* first-row row-bytes)
+                                      (* (min rows-per-segment (- rows first-row)) row-bytes))
+                                (.order ByteOrder/LITTLE_ENDIAN))))
+                     rows-per-segment
+                     rows
+                     cols
+                     nbytes
+                     (double nodata))))))
+
+(defn create-raster-file
+  "Creates the raw little-endian float64 raster data file filename
+   and its sidecar header (see read-raster-header) for a grid of rows
+   x cols cells, replacing any existing file. Its cells may then be
+   written with write-raster-window! and read with map-raster-file."
+  [filename rows cols cell-width cell-height]
+  (spit (raster-header-file filename)
+        (str "nrows      " rows        "\n"
+             "ncols      " cols        "\n"
+             "cellwidth  " cell-width  "\n"
+             "cellheight " cell-height "\n"
+             "nbits      64\n"
+             "byteorder  LSBFIRST\n"))
+  (with-open [file (RandomAccessFile. (io/file filename) "rw")]
+    (.setLength file 0)
+    (.setLength file (* rows cols 8))))
+
+(defn write-raster-window!
+  "Writes the numbers in matrix into the float64 raster data file
+   filename (see create-raster-file) with the top-left cell of matrix
+   at [i0 j0]. Each row is written in place, so the file may be much
+   larger than the heap."
+  [filename [i0 j0] matrix]
+  (let [{:keys [cols nbits]} (read-raster-header filename)]
+    (if-not (== nbits 64)
+      (throw (Exception. (str "Raster " filename " must have nbits of 64 to be written."))))
+    (with-open [file (RandomAccessFile. (io/file filename) "rw")]
+      (let [channel (.getChannel file)
+            buf     (.order (ByteBuffer/allocate (* 8 (count (first matrix)))) ByteOrder/LITTLE_ENDIAN)]
+        (doseq [[i row] (map-indexed vector matrix)]
+          (.clear buf)
+          (doseq [x row] (.putDouble buf (double x)))
+          (.flip buf)
+          (loop [position (* 8 (+ (* (+ i0 i) cols) j0))]
+            (if (.hasRemaining buf)
+              (recur (+ position (.write channel buf (long position)))))))))))
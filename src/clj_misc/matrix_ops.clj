@@ -18,37 +18,50 @@
 ;;;-------------------------------------------------------------------
 ;;;
 ;;; This namespace defines a number of functions for creating,
-;;; querying, and manipulating matrices, which are defined to be
-;;; vectors of vectors.
+;;; querying, and manipulating matrices. A matrix may be any vector of
+;;; vectors or any of the grids in clj-misc.grid. Those created here
+;;; are dense grids, which keep their cells in one flat double[] or
+;;; Object[] rather than in a vector of persistent vectors.
 
 (ns clj-misc.matrix-ops
   (:use [clojure.set    :only [map-invert]]
         [clj-misc.utils :only [constraints-1.0 def- p & remove-nil-val-entries magnitude
-                               between? metric-distance with-message manhattan-distance-2]]))
+                               between? metric-distance with-message manhattan-distance-2]]
+        [clj-misc.grid  :only [grid? sparse-grid? sparse-coords sparse-values
+                               make-grid make-grid-parallel seq2grid grid-values double-cell
+                               nth-cell make-cell-set window-grid]]))
 
 (defn get-rows [matrix] (count matrix))
 (defn get-cols [matrix] (count (first matrix)))
 
 (defn is-matrix?
   [matrix]
-  (and
-   (vector? matrix)
-   (vector? (first matrix))))
+  (or
+   (grid? matrix)
+   (and
+    (vector? matrix)
+    (vector? (first matrix)))))
 
 (defn make-matrix
-  "Creates a rows x cols vector of vectors whose states are generated
-   by calling val-fn on the [i j] coordinate pair."
+  "Creates a rows x cols matrix whose states are generated by calling
+   val-fn on the [i j] coordinate pair. The matrix is a dense grid
+   (see clj-misc.grid/make-grid)."
   [rows cols val-fn]
-  (persistent!
-   (reduce (fn [rows i]
-             (conj! rows
-                    (persistent!
-                     (reduce (fn [cols j]
-                               (conj! cols (val-fn [i j])))
-                             (transient [])
-                             (range cols)))))
-           (transient [])
-           (range rows))))
+  (make-grid rows cols val-fn))
+
+(defn make-matrix-parallel
+  "Like make-matrix, but generates blocks of rows in parallel (see
+   clj-misc.utils/parallel-blocks), so val-fn must be safe to call
+   from several threads at once."
+  [rows cols val-fn]
+  (make-grid-parallel rows cols val-fn))
+
+(def ^:dynamic *report-distinct-values*
+  "If true, resample-matrix (and the SPAN preprocessing steps) report
+   the number of distinct values in each layer before and after
+   processing it. Counting them takes a full pass over the layer, so
+   this is off by default."
+  false)
 
 (defn transpose-matrix
   [matrix]
@@ -61,6 +74,38 @@
   (filter (fn [id] (pred? (get-in matrix id)))
           (for [i (range (get-rows matrix)) j (range (get-cols matrix))] [i j])))
 
+(defn id->index
+  "Returns the packed index i * cols + j of the point [i j], which is
+   its position among the row-major cells of a grid."
+  [cols [i j]]
+  (+ (* i cols) j))
+
+(defn index->id
+  "Returns the point [i j] whose packed index (see id->index) is k."
+  [cols k]
+  [(quot k cols) (rem k cols)])
+
+(defn index-in-bounds?
+  "Returns true if k is the packed index (see id->index) of a cell of
+   a rows x cols grid."
+  [rows cols k]
+  (< -1 k (* rows cols)))
+
+(defn ids->cell-set
+  "Returns the points in ids as a cell set of a rows x cols grid (see
+   clj-misc.grid/make-cell-set)."
+  [rows cols ids]
+  (make-cell-set rows cols (map (p id->index cols) ids)))
+
+(defn filter-matrix-for-cell-set
+  "Like filter-matrix-for-coords, but returns the matching points as a
+   cell set (see clj-misc.grid/make-cell-set) without building an
+   [i j] vector for each cell of matrix."
+  [pred? matrix]
+  (let [rows (get-rows matrix)
+        cols (get-cols matrix)]
+    (make-cell-set rows cols (filter #(pred? (nth-cell matrix %)) (range (* rows cols))))))
+
 (defn add-ids
   [[a b] [c d]]
   [(+ a c) (+ b d)])
@@ -94,17 +139,17 @@
           (map undelta-codes bytecodes)))
 
 (defn seq2matrix
-  "Creates a rows x cols vector of vectors whose states are
-   the successive elements of aseq."
+  "Creates a rows x cols matrix whose states are the successive
+   elements of aseq."
   [rows cols aseq]
   (constraints-1.0 {:pre [(== (count aseq) (* rows cols))]})
-  (vec (map vec (partition cols aseq))))
+  (seq2grid rows cols aseq))
 
 (defn matrix2seq
   "Returns the contents of a matrix as a single sequence by
    concatenating all of its rows."
   [matrix]
-  (apply concat matrix))
+  (grid-values matrix))
 
 (defn matrix2coord-map
   ([matrix]
@@ -113,6 +158,26 @@
   ([nil-val matrix]
      (remove-nil-val-entries nil-val (matrix2coord-map matrix))))
 
+(defn nonzero-coords
+  "Returns the coordinates of all cells of matrix which are not= zero
+   in row-major order. If matrix is a sparse grid with the same zero
+   (see clj-misc.grid/make-sparse-grid), only its stored cells are
+   visited."
+  [zero matrix]
+  (if (sparse-grid? matrix)
+    (sparse-coords matrix)
+    (filter-matrix-for-coords (p not= zero) matrix)))
+
+(defn nonzero-values
+  "Returns the values of all cells of matrix which are not= zero in
+   row-major order. If matrix is a sparse grid with the same zero (see
+   clj-misc.grid/make-sparse-grid), only its stored cells are
+   visited."
+  [zero matrix]
+  (if (sparse-grid? matrix)
+    (sparse-values matrix)
+    (remove (p = zero) (matrix2seq matrix))))
+
 (defn coord-map2matrix
   [rows cols nil-val coord-map]
   (make-matrix rows cols #(get coord-map % nil-val)))
@@ -133,22 +198,41 @@
 
 (defn invert-matrix
   [matrix]
-  (vec (for [i (range (get-cols matrix))]
-         (vec (for [j (range (get-rows matrix))]
-                (get-in matrix [j i]))))))
+  (make-matrix (get-cols matrix) (get-rows matrix) (fn [[i j]] (get-in matrix [j i]))))
 
 (defn map-matrix
   "Maps a function f over the values in matrix, returning a new
    matrix."
   ([f matrix]
-     (make-matrix (get-rows matrix) (get-cols matrix)
-                  (fn [coords](f (get-in matrix coords)))))
-     ;; (vec (map (fn [row] (vec (map f row))) matrix)))
+     (seq2grid (get-rows matrix) (get-cols matrix) (map f (matrix2seq matrix))))
   ([f matrix & matrices]
      (constraints-1.0 {:pre [(apply grids-align? matrix matrices)]})
      (let [matrices (cons matrix matrices)]
-       (make-matrix (get-rows matrix) (get-cols matrix)
-                    (fn [coords] (apply f (map #(get-in % coords) matrices)))))))
+       (seq2grid (get-rows matrix) (get-cols matrix) (apply map f (map matrix2seq matrices))))))
+
+(defn submatrix
+  "Returns a rows x cols view of matrix with its top-left cell at [i0
+   j0] (see clj-misc.grid/window-grid). No cells are copied."
+  [matrix window]
+  (window-grid matrix window))
+
+(defn tile-grid
+  "Splits a rows x cols grid into tiles of at most tile-size x
+   tile-size cells. Returns a seq of maps of {:core :window}, where
+   core is the [i0 j0 rows cols] extent of the tile and window is the
+   same extent grown by halo cells on every side and clipped to the
+   grid."
+  [rows cols tile-size halo]
+  (for [i0 (range 0 rows tile-size)
+        j0 (range 0 cols tile-size)]
+    (let [core-rows (min tile-size (- rows i0))
+          core-cols (min tile-size (- cols j0))
+          wi0       (max 0 (- i0 halo))
+          wj0       (max 0 (- j0 halo))
+          wi1       (min rows (+ i0 core-rows halo))
+          wj1       (min cols (+ j0 core-cols halo))]
+      {:core   [i0 j0 core-rows core-cols]
+       :window [wi0 wj0 (- wi1 wi0) (- wj1 wj0)]})))
 
 (defn numeric-extensive-sampler
   "Returns the extensive weighted sum of a coverage (i.e. a sequence
@@ -163,6 +247,24 @@
   (let [frac-sum (reduce + (map second coverage))]
     (reduce + (map (fn [[val frac]] (* val (/ frac frac-sum))) coverage))))
 
+(defn numeric-intensive-block-sampler
+  "Returns the mean of the k-rows x k-cols block of cells of the
+   numeric matrix whose top-left cell is [i0 j0]. This is the
+   numeric-intensive-sampler of that block's coverage, summed in the
+   same order, but it is computed in a primitive loop without
+   building the coverage."
+  [matrix i0 j0 k-rows k-cols]
+  (let [i0     (long i0)
+        j0     (long j0)
+        j1     (+ j0 (long k-cols) -1)
+        weight (/ 1.0 (* (long k-rows) (long k-cols)))]
+    (loop [i   (+ i0 (long k-rows) -1)
+           j   j1
+           sum 0.0]
+      (cond (< i i0) sum
+            (< j j0) (recur (dec i) j1 sum)
+            :else    (recur i (dec j) (+ sum (* (double-cell matrix i j) weight)))))))
+
 (defn cell-fractions-covered
   [i l]
   (if (< l 1.0)
@@ -208,24 +310,59 @@
                 [j* w*] (cell-fractions-covered j w)]
             [(get-in matrix [i* j*]) (* l* w*)])))
 
+(defn- block-coverage
+  "Returns the coverage (as get-matrix-coverage would list it) of the
+   k-rows x k-cols block of cells of matrix whose top-left cell is
+   [i0 j0]."
+  [matrix i0 j0 k-rows k-cols]
+  (remove (fn [[v f]] (nil? v))
+          (for [i (range (+ i0 k-rows -1) (dec i0) -1)
+                j (range (+ j0 k-cols -1) (dec j0) -1)]
+            [(get-in matrix [i j]) 1.0])))
+
 (defn resample-matrix
-  [new-rows new-cols sampling-fn matrix]
-  {:pre [(every? #(and (pos? %) (integer? %)) [new-rows new-cols])]}
-  (let [orig-rows (get-rows matrix)
-        orig-cols (get-cols matrix)]
-    (with-message
-      (str "\nResampling matrix from " orig-rows " x " orig-cols " to " new-rows " x " new-cols "...\n")
-      #(format "  Distinct Layer Values: [Pre] %d [Post] %d"
-               (count (distinct (matrix2seq matrix)))
-               (count (distinct (matrix2seq %))))
-      (if (and (== orig-rows new-rows)
-               (== orig-cols new-cols))
-        matrix
-        (let [cell-length (float (/ orig-rows new-rows))
-              cell-width  (float (/ orig-cols new-cols))]
-          (make-matrix new-rows
-                       new-cols
-                       (fn [[i j]] (sampling-fn (get-matrix-coverage matrix cell-length cell-width i j)))))))))
+  "Resamples matrix to new-rows x new-cols. Each new cell's value is
+   computed by calling sampling-fn on the coverage of the original
+   cells beneath it (a sequence of pairs of [value fraction-covered]).
+   If the original dimensions are whole multiples of the new ones,
+   each new cell covers a block of whole cells. Then, if
+   block-sampling-fn is given, it is called instead as
+   (block-sampling-fn matrix i0 j0 k-rows k-cols) with the block's
+   top-left cell and size (see numeric-intensive-block-sampler). The
+   rows of the new matrix are computed in parallel."
+  ([new-rows new-cols sampling-fn matrix]
+     (resample-matrix new-rows new-cols sampling-fn nil matrix))
+  ([new-rows new-cols sampling-fn block-sampling-fn matrix]
+     {:pre [(every? #(and (pos? %) (integer? %)) [new-rows new-cols])]}
+     (let [orig-rows (get-rows matrix)
+           orig-cols (get-cols matrix)]
+       (with-message
+         (str "\nResampling matrix from " orig-rows " x " orig-cols " to " new-rows " x " new-cols "...\n")
+         #(if *report-distinct-values*
+            (format "  Distinct Layer Values: [Pre] %d [Post] %d"
+                    (count (distinct (matrix2seq matrix)))
+                    (count (distinct (matrix2seq %))))
+            "  done")
+         (cond (and (== orig-rows new-rows)
+                    (== orig-cols new-cols))
+               matrix
+
+               (and (zero? (rem orig-rows new-rows))
+                    (zero? (rem orig-cols new-cols)))
+               (let [k-rows            (quot orig-rows new-rows)
+                     k-cols            (quot orig-cols new-cols)
+                     block-sampling-fn (or block-sampling-fn
+                                           (& sampling-fn block-coverage))]
+                 (make-matrix-parallel new-rows
+                                       new-cols
+                                       (fn [[i j]] (block-sampling-fn matrix (* i k-rows) (* j k-cols) k-rows k-cols))))
+
+               :otherwise
+               (let [cell-length (float (/ orig-rows new-rows))
+                     cell-width  (float (/ orig-cols new-cols))]
+                 (make-matrix-parallel new-rows
+                                       new-cols
+                                       (fn [[i j]] (sampling-fn (get-matrix-coverage matrix cell-length cell-width i j))))))))))
 
 (defn divides?
   "Is y divisible by x? (i.e. x is the denominator)"
@@ -291,13 +428,32 @@
       (== j 0)
       (== j (dec cols))))
 
+(def neighbor-offsets
+  "The [di dj] offsets from a point to its eight neighbors, in the
+   order that get-neighbors and get-neighbor-indices return them."
+  [[-1 -1] [1 1] [1 -1] [-1 1] [1 0] [-1 0] [0 1] [0 -1]])
+
 (defn get-neighbors
   "Return a sequence of neighboring points within the map bounds."
   [rows cols [i j]]
   (filterv (p in-bounds? rows cols)
-           (map #(vector (+ i %1) (+ j %2))
-                [-1 1  1 -1 1 -1 0  0]
-                [-1 1 -1  1 0  0 1 -1])))
+           (map (fn [[di dj]] [(+ i di) (+ j dj)]) neighbor-offsets)))
+
+(defn get-neighbor-indices
+  "Like get-neighbors, but takes and returns packed indexes (see
+   id->index) instead of [i j] points. The bounds are checked on each
+   neighbor's row and column, so no neighbor wraps around the edge of
+   a row."
+  [rows cols k]
+  (let [rows (long rows)
+        cols (long cols)
+        i    (quot (long k) cols)
+        j    (rem (long k) cols)]
+    (into [] (for [[di dj] neighbor-offsets
+                   :let  [i* (+ i (long di))
+                          j* (+ j (long dj))]
+                   :when (and (>= i* 0) (>= j* 0) (< i* rows) (< j* cols))]
+               (+ (* i* cols) j*)))))
 
 (defn get-neighbors-clockwise
   "Return a sequence of neighboring points within the map bounds."
@@ -435,6 +591,55 @@
         step-delta (map #(int (* num-steps %)) dir)]
     (map + id step-delta)))
 
+(defn- invoke-line-fn
+  [f acc ^long i ^long j]
+  (if (instance? clojure.lang.IFn$OLLO f)
+    (.invokePrim ^clojure.lang.IFn$OLLO f acc i j)
+    (f acc i j)))
+
+(defn reduce-line-between
+  "Reduces f over the points of the line from provider to beneficiary
+   (see find-line-between) in order, calling (f acc i j) on each point
+   [i j] without building it. If f is hinted to take primitive longs,
+   i.e. (fn [acc ^long i ^long j] ...), the traversal itself allocates
+   nothing. Like reduce, this stops early if f returns a reduced
+   value.
+
+   The line is walked one column j at a time. Within each column, it
+   visits every row i between round(y(j - 1/2)) and round(y(j + 1/2))
+   (or the endpoint's own row in the first and last columns), where
+   y(x) = m x + b. As find-line-between always has, m and b are taken
+   from their exact ratios and y(x) is then computed and rounded in
+   double arithmetic, so lines through a half-cell boundary round the
+   same way they always did."
+  [f init [pi pj] [bi bj]]
+  (let [pi    (long pi)
+        pj    (long pj)
+        bi    (long bi)
+        bj    (long bj)
+        si    (if (< bi pi) -1 1)
+        sj    (if (< bj pj) -1 1)
+        min-j (min pj bj)
+        max-j (max pj bj)
+        m     (if (not= pj bj) (/ (- bi pi) (- bj pj)))
+        m-dbl (if m (double m) 0.0)
+        b-dbl (if m (double (- pi (* m pj))) 0.0)]
+    (loop [j   pj
+           acc init]
+      (let [r0  (if m (Math/round (+ (* m-dbl (- j (if (== j min-j) 0.0 0.5))) b-dbl)) pi)
+            r1  (if m (Math/round (+ (* m-dbl (+ j (if (== j max-j) 0.0 0.5))) b-dbl)) bi)
+            i0  (if (neg? si) (max r0 r1) (min r0 r1))
+            i1  (if (neg? si) (min r0 r1) (max r0 r1))
+            acc (loop [i   i0
+                       acc acc]
+                  (let [acc (invoke-line-fn f acc i j)]
+                    (if (or (reduced? acc) (== i i1))
+                      acc
+                      (recur (+ i si) acc))))]
+        (cond (reduced? acc) @acc
+              (== j bj)      acc
+              :otherwise     (recur (+ j sj) acc))))))
+
 (defn find-line-between
   "Returns the sequence of all points [i j] intersected by the line
    from provider to beneficiary.  Since this is calculated over a
@@ -444,45 +649,13 @@
    center of a square of side length 1.  Note that the first point in
    each path will be the provider id, and the last will be the
    beneficiary id.  If provider=beneficiary, the path will contain
-   only this one point."
-  [[pi pj] [bi bj]]
-  (let [m (if (not= pj bj) (/ (- bi pi) (- bj pj)))
-        b (if m (- pi (* m pj)))
-        f (fn [x] (+ (* m x) b))]
-    (cond (nil? m) (map (fn [i] [i pj])
-                        (if (< pi bi)
-                          (range pi (inc bi))
-                          (range pi (dec bi) -1)))
-
-          (zero? m) (map (fn [j] [pi j])
-                         (if (< pj bj)
-                           (range pj (inc bj))
-                           (range pj (dec bj) -1)))
-
-          :otherwise (let [get-i-range
-                           (cond (and (< pi bi) (< pj bj))
-                                 (fn [j] (let [left-i  (int (Math/round (f (- j (if (== j pj) 0.0 0.5)))))
-                                               right-i (int (Math/round (f (+ j (if (== j bj) 0.0 0.5)))))]
-                                           (range left-i (inc right-i))))
-                           
-                                 (and (< pi bi) (> pj bj))
-                                 (fn [j] (let [left-i  (int (Math/round (f (- j (if (== j bj) 0.0 0.5)))))
-                                               right-i (int (Math/round (f (+ j (if (== j pj) 0.0 0.5)))))]
-                                           (range right-i (inc left-i))))
-                           
-                                 (and (> pi bi) (< pj bj))
-                                 (fn [j] (let [left-i  (int (Math/round (f (- j (if (== j pj) 0.0 0.5)))))
-                                               right-i (int (Math/round (f (+ j (if (== j bj) 0.0 0.5)))))]
-                                           (range left-i  (dec right-i) -1)))
-                           
-                                 (and (> pi bi) (> pj bj))
-                                 (fn [j] (let [left-i  (int (Math/round (f (- j (if (== j bj) 0.0 0.5)))))
-                                               right-i (int (Math/round (f (+ j (if (== j pj) 0.0 0.5)))))]
-                                           (range right-i (dec left-i)  -1))))
-                           j-range (if (< pj bj)
-                                     (range pj (inc bj))
-                                     (range pj (dec bj) -1))]
-                       (for [j j-range i (get-i-range j)] [i j])))))
+   only this one point. Use reduce-line-between to visit these points
+   without building them."
+  [provider beneficiary]
+  (persistent! (reduce-line-between (fn [points ^long i ^long j] (conj! points [i j]))
+                                    (transient [])
+                                    provider
+                                    beneficiary)))
 
 (defn find-bounding-box
   "Returns a new list of points which completely bounds the
@@ -606,6 +779,106 @@
                          (iterate (p find-bounding-box rows cols)
                                   (list origin)))))))
 
+(defn- bounding-box-ring
+  "Returns the points generated by the kth (k >= 1) iteration of
+   find-bounding-box outward from id, in the same order, without
+   generating the k-1 rings inside it."
+  [rows cols [i j] k]
+  (let [bottom (- i k)
+        top    (+ i k)
+        left   (- j k)
+        right  (+ j k)
+        min-i  (max (inc bottom) 0)
+        max-i  (min (dec top) (dec rows))
+        min-j  (max (inc left) 0)
+        max-j  (min (dec right) (dec cols))]
+    (concat
+     (when (>= left   0)    (for [i (range min-i (inc max-i))] [i left]))
+     (when (<  right  cols) (for [i (range min-i (inc max-i))] [i right]))
+     (when (>= bottom 0)    (for [j (range min-j (inc max-j))] [bottom j]))
+     (when (<  top    rows) (for [j (range min-j (inc max-j))] [top j]))
+     (when (and (>= left 0)     (<  top rows)) (list [top left]))
+     (when (and (>= left 0)     (>= bottom 0)) (list [bottom left]))
+     (when (and (<  right cols) (<  top rows)) (list [top right]))
+     (when (and (<  right cols) (>= bottom 0)) (list [bottom right])))))
+
+(defn- chessboard-distances
+  "Returns a row-major int array holding the chessboard distance from
+   each cell to the nearest point for which test? is true (or
+   Integer/MAX_VALUE everywhere if there are none). Uses the two-pass
+   distance transform of Rosenfeld and Pfaltz, which is exact for this
+   metric."
+  ^ints [test? ^long rows ^long cols]
+  (let [dist   (int-array (* rows cols) Integer/MAX_VALUE)
+        relax! (fn [^long i ^long j ^long ni ^long nj]
+                 (when (and (< -1 ni rows) (< -1 nj cols))
+                   (let [idx (+ (* i cols) j)
+                         d   (inc (aget dist (+ (* ni cols) nj)))]
+                     (if (< d (aget dist idx))
+                       (aset dist idx (int d))))))]
+    (dotimes [i rows]
+      (dotimes [j cols]
+        (if (test? [i j])
+          (aset dist (+ (* i cols) j) (int 0)))))
+    (dotimes [i rows]
+      (dotimes [j cols]
+        (relax! i j (dec i) (dec j))
+        (relax! i j (dec i) j)
+        (relax! i j (dec i) (inc j))
+        (relax! i j i (dec j))))
+    (loop [i (dec rows)]
+      (when (>= i 0)
+        (loop [j (dec cols)]
+          (when (>= j 0)
+            (relax! i j (inc i) (inc j))
+            (relax! i j (inc i) j)
+            (relax! i j (inc i) (dec j))
+            (relax! i j i (inc j))
+            (recur (dec j))))
+        (recur (dec i))))
+    dist))
+
+(defn make-feature-index
+  "Precomputes the chessboard distance from every cell in a rows x cols
+   grid to the nearest point for which test? is true. Pass the result
+   to find-nearest-feature and find-features-in-range, which answer
+   the same queries as find-nearest and find-in-range without growing
+   bounding boxes through the empty rings around each query point."
+  [test? rows cols]
+  {:test?     test?
+   :rows      rows
+   :cols      cols
+   :distances (chessboard-distances test? rows cols)})
+
+(defn- feature-distance
+  [{:keys [cols ^ints distances]} [i j]]
+  (aget distances (int (+ (* (long i) (long cols)) (long j)))))
+
+(defn find-nearest-feature
+  "Returns (find-nearest test? rows cols id) for the test? rows cols of
+   feature-index by searching only the ring of cells around id which
+   holds its nearest feature."
+  [{:keys [test? rows cols] :as feature-index} id]
+  (let [d (long (feature-distance feature-index id))]
+    (cond (== d Integer/MAX_VALUE) nil
+          (== d 0)                 id
+          (== d 1)                 (first (filter test? (get-neighbors rows cols id)))
+          :else                    (first (filter test? (bounding-box-ring rows cols id d))))))
+
+(defn find-features-in-range
+  "Returns (find-in-range test? dist-in-m cell-width cell-height rows
+   cols origin) for the test? rows cols of feature-index by skipping
+   the rings of cells around origin which are closer than its nearest
+   feature."
+  [{:keys [test? rows cols] :as feature-index} dist-in-m cell-width cell-height origin]
+  (let [iters (inc (int (/ dist-in-m (min cell-width cell-height))))]
+    (filter #(and (within-range? dist-in-m cell-width cell-height origin %)
+                  (test? %))
+            (mapcat #(if (zero? %)
+                       (list origin)
+                       (bounding-box-ring rows cols origin %))
+                    (range (min (feature-distance feature-index origin) iters) iters)))))
+
 (defn get-bearing
   [source destination]
   (let [[dx dy :as delta-vec] (subtract-ids destination source)
@@ -39,6 +39,20 @@
   (let [midpoints (map (fn [next prev] (/ (+ next prev) 2.0)) (rest bounds) bounds)]
     (reduce + (map * midpoints probs))))
 
+(defn create-from-flat-ranges
+  "Like create-from-ranges, but reads the n-1 probs from the flat
+   array probs starting at offset. This avoids building a seq for each
+   cell of a layer whose probabilities are stored in one array."
+  ^double [^doubles bounds ^doubles probs offset]
+  (let [num-states (dec (alength bounds))
+        offset     (int offset)]
+    (loop [i 0, mean 0.0]
+      (if (< i num-states)
+        (recur (inc i)
+               (+ mean (* (/ (+ (aget bounds (inc i)) (aget bounds i)) 2.0)
+                          (aget probs (+ offset i)))))
+        mean))))
+
 (def ^{:doc "The number 0.0."} _0_ 0.0)
 
 (def ^{:doc "Returns the sum of two or more Numbers."} _+_ +)
@@ -105,3 +119,70 @@
 
 (def ^{:doc "Extracts a deterministic value from a Number by simply returning it."} draw identity)
 (def ^{:doc "Returns n instances (or an infinite lazy sequence) of the passed-in Number."} draw-repeatedly repeat)
+
+;; Compiled operations
+;;
+;; The vars above are plain aliases of clojure.core's generic
+;; arithmetic, and rv-fn evals its form on every call. compiled-ops
+;; returns replacements for them which add, compare, etc. two Doubles
+;; as primitive doubles and which compile each rv-fn form only once.
+;; Any other arguments (e.g., longs or ratios) still go to
+;; clojure.core's generic operators, so (_d_ 1 0) throws and (_d_ 1 2)
+;; is 1/2, just as they do without compiled-ops.
+;; clj-span.core/make-math-context uses these for every run whose
+;; value-type is :numbers.
+
+(defmacro ^:private double-op
+  "Returns a fn which applies op to two Doubles as primitive doubles,
+   and falls back to op for any other arguments."
+  [op]
+  `(fn
+     ([] (~op))
+     ([a#] (~op a#))
+     ([a# b#] (if (and (instance? Double a#) (instance? Double b#))
+                (~op (.doubleValue ^Double a#) (.doubleValue ^Double b#))
+                (~op a# b#)))
+     ([a# b# & more#] (apply ~op a# b# more#))))
+
+(defmacro ^:private double-test
+  "Like double-op, but for predicates."
+  [op]
+  `(fn
+     ([a#] (~op a#))
+     ([a# b#] (if (and (instance? Double a#) (instance? Double b#))
+                (~op (.doubleValue ^Double a#) (.doubleValue ^Double b#))
+                (~op a# b#)))
+     ([a# b# & more#] (apply ~op a# b# more#))))
+
+(defn make-rv-fn
+  "Returns a version of rv-fn which evals each distinct form f only
+   once and then reuses the compiled fn. The cache lives as long as
+   the returned fn, so make a new one for each run."
+  []
+  (let [compiled (java.util.concurrent.ConcurrentHashMap.)
+        compile-form (fn [f] (or (.get compiled f)
+                                 (let [g (eval f)]
+                                   (or (.putIfAbsent compiled f g) g))))]
+    (fn
+      ([f]          ((compile-form f)))
+      ([f X]        ((compile-form f) X))
+      ([f X Y]      ((compile-form f) X Y))
+      ([f X Y & Zs] (apply (compile-form f) X Y Zs)))))
+
+(defn compiled-ops
+  "Returns a map of var names in this namespace to compiled
+   replacements for them: primitive double versions of the arithmetic,
+   comparison, min, and max operators, and an rv-fn from make-rv-fn."
+  []
+  (let [add (double-op +), sub (double-op -), mul (double-op *), div (double-op /)
+        lt  (double-test <), gt (double-test >)
+        mn  (double-op min), mx (double-op max)]
+    {'_+_ add, '_+ add, '+_ add
+     '_-_ sub, '_- sub, '-_ sub
+     '_*_ mul, '_* mul, '*_ mul
+     '_d_ div, '_d div, 'd_ div
+     '_<_ lt,  '_< lt,  '<_ lt
+     '_>_ gt,  '_> gt,  '>_ gt
+     '_min_ mn, '_min mn, 'min_ mn
+     '_max_ mx, '_max mx, 'max_ mx
+     'rv-fn (make-rv-fn)}))
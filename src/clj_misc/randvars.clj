@@ -84,6 +84,21 @@
   (let [midpoints (map (fn [next prev] (/ (+ next prev) 2.0)) (rest bounds) bounds)]
     (with-meta (zipmap midpoints probs) disc-type)))
 
+(defn create-from-flat-ranges
+  "Like create-from-ranges, but reads the n-1 probs from the flat
+   array probs starting at offset. This avoids building a seq for each
+   cell of a layer whose probabilities are stored in one array."
+  [^doubles bounds ^doubles probs offset]
+  (let [num-states (dec (alength bounds))
+        offset     (int offset)]
+    (loop [i 0, rv (transient {})]
+      (if (< i num-states)
+        (recur (inc i)
+               (assoc! rv
+                       (/ (+ (aget bounds (inc i)) (aget bounds i)) 2.0)
+                       (aget probs (+ offset i))))
+        (with-meta (persistent! rv) disc-type)))))
+
 (defn create-from-ranges-continuous
   "Constructs a continuous Randvar from n bounds and n-1 probs
    corresponding to a piecewise continuous uniform distribution with
@@ -518,6 +518,58 @@
     (println "Waiting for Agents to Finish...")
     (apply await agents)))
 
+(defn bounded-pmap
+  "Like pmap, but keeps at most n applications of f running at once.
+   The result is a lazy seq in the order of coll, and only the first
+   n elements are started until it is consumed. The futures are built
+   one at a time, so chunked seqs do not start more than n at once.
+   n must be positive."
+  [n f coll]
+  {:pre [(pos? n)]}
+  (let [rets ((fn futures [coll]
+                (lazy-seq
+                 (if-let [s (seq coll)]
+                   (cons (future (f (first s))) (futures (rest s))))))
+              coll)
+        step (fn step [[x & xs :as vs] fs]
+               (lazy-seq
+                (if-let [s (seq fs)]
+                  (cons (deref x) (step xs (rest s)))
+                  (map deref vs))))]
+    (step rets (drop (dec n) rets))))
+
+(defn parallel-blocks
+  "Splits (range n) into blocks of consecutive integers (about four
+   per processor) and returns the seq of (f block) for each of them,
+   computed in parallel with pmap but returned in order."
+  [n f]
+  (let [block-size (max 1 (long (Math/ceil (/ n (* 4 (.availableProcessors (Runtime/getRuntime)))))))]
+    (pmap f (partition-all block-size (range n)))))
+
+(defn make-identity-cache
+  []
+  (java.util.IdentityHashMap.))
+
+(defn identity-cached
+  "Returns (f), cached in the IdentityHashMap cache under the object
+   obj (compared by identity) and the key k (compared by value).
+   Concurrent callers asking for the same entry share one call to f."
+  [^java.util.IdentityHashMap cache obj k f]
+  (let [result (locking cache
+                 (let [entries (or (.get cache obj) {})]
+                   (or (entries k)
+                       (let [result (delay (f))]
+                         (.put cache obj (assoc entries k result))
+                         result))))]
+    @result))
+
+(defn evict-identity-cached
+  "Removes every entry cached under obj in cache (see identity-cached)
+   and returns them as a map of keys to delays."
+  [^java.util.IdentityHashMap cache obj]
+  (locking cache
+    (.remove cache obj)))
+
 (defn sum [nums] (reduce + nums))
 
 (defn dofold
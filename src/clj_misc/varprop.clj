@@ -54,6 +54,28 @@
         var           (- second-moment (* mean mean))]
     (fuzzy-number mean var)))
 
+(defn create-from-flat-ranges
+  "Like create-from-ranges, but reads the n-1 probs from the flat
+   array probs starting at offset. This avoids building a seq for each
+   cell of a layer whose probabilities are stored in one array."
+  [^doubles bounds ^doubles probs offset]
+  (let [num-states (dec (alength bounds))
+        offset     (int offset)
+        prob       (fn ^double [i] (if (and (>= i 0) (< i num-states)) (aget probs (+ offset i)) 0.0))
+        mean       (loop [i 0, mean 0.0]
+                     (if (< i num-states)
+                       (recur (inc i)
+                              (+ mean (* (/ (+ (aget bounds (inc i)) (aget bounds i)) 2.0)
+                                         (prob i))))
+                       mean))
+        moment-sum (loop [i 0, sum 0.0]
+                     (if (<= i num-states)
+                       (recur (inc i)
+                              (+ sum (* (Math/pow (aget bounds i) 3) (- (prob (dec i)) (prob i)))))
+                       sum))
+        var        (- (* 1/3 moment-sum) (* mean mean))]
+    (fuzzy-number mean var)))
+
 (def ^{:doc "A FuzzyNumber with mean and variance of 0."} _0_ (fuzzy-number 0.0 0.0))
 
 (defn _+_
@@ -21,12 +21,135 @@
 ;;; sequence returned by clj-span.core/simulate-service-flows.  Each
 ;;; public function may be applied independently of the others to
 ;;; generate its result matrix.
+;;;
+;;; The cache-layer may either be a matrix of service-carrier lists or
+;;; a frozen clj-span.result-graph, which is read without ever
+;;; building the carriers. In either case, all of the layers derived
+;;; from the carriers are computed together by carrier-sums in a
+;;; single pass.
+;;;
+;;; Layers which are shared by several analyzers are cached in the
+;;; params map's :result-cache (see make-result-cache), which belongs
+;;; to a single run and is released along with its results.
 
 (ns clj-span.analyzer
   (:use [clj-misc.utils      :only (p)]
-        [clj-misc.matrix-ops :only (get-rows get-cols matrix2seq map-matrix make-matrix)])
+        [clj-misc.matrix-ops :only (get-rows get-cols nonzero-values map-matrix make-matrix)]
+        [clj-misc.grid       :only (make-accumulator-grid accumulate-in!)]
+        [clj-span.result-graph :only (frozen-result-graph? sum-edges)])
   (:require (clj-misc [numbers :as nb] [varprop :as vp] [randvars :as rv])))
 
+(defn make-result-cache
+  "Returns an empty result cache for one SPAN run. It holds at most
+   one entry per cached analyzer and is garbage collected along with
+   the params map which refers to it."
+  []
+  (atom {}))
+
+(defn- run-cached
+  "Returns a function of params which calls (f params) at most once
+   per run, storing the result under k in the params map's
+   :result-cache. Without a :result-cache, f is simply called."
+  [k f]
+  (fn [{:keys [result-cache] :as params}]
+    (if result-cache
+      (let [result (delay (f params))]
+        @(get (swap! result-cache #(if (contains? % k) % (assoc % k result))) k))
+      (f params))))
+
+(defn- cell-sums-to-matrix
+  "Returns a rows x cols matrix of the values in totals (a double[]
+   indexed by packed cell id)."
+  [rows cols ^doubles totals]
+  (make-matrix rows cols (fn [[i j]] (aget totals (int (+ (* i cols) j))))))
+
+(defn- row-chunks
+  "Splits the row indices of a matrix into a few chunks per processor."
+  [rows]
+  (partition-all (max 1 (quot rows (* 4 (.availableProcessors (Runtime/getRuntime)))))
+                 (range rows)))
+
+(defn- sum-number-carriers
+  "Fused carrier-sums for numbers. Each chunk of rows is summed in
+   parallel. Use sums are written straight into a double[] (each row
+   belongs to one chunk), while source and sink sums are scattered
+   into accumulator grids."
+  [cache-layer]
+  (let [rows            (get-rows cache-layer)
+        cols            (get-cols cache-layer)
+        possible-use    (double-array (* rows cols))
+        actual-use      (double-array (* rows cols))
+        possible-source (make-accumulator-grid rows cols)
+        actual-source   (make-accumulator-grid rows cols)
+        actual-sink     (make-accumulator-grid rows cols)]
+    (dorun
+     (pmap (fn [chunk]
+             (doseq [i chunk j (range cols)]
+               (loop [carriers (get-in cache-layer [i j]), possible 0.0, actual 0.0]
+                 (if-let [{:keys [source-id possible-weight actual-weight sink-effects]} (first carriers)]
+                   (do
+                     (accumulate-in! possible-source source-id + possible-weight)
+                     (accumulate-in! actual-source   source-id + actual-weight)
+                     (doseq [[sink-id sink-value] sink-effects]
+                       (accumulate-in! actual-sink sink-id + sink-value))
+                     (recur (rest carriers) (+ possible (double possible-weight)) (+ actual (double actual-weight))))
+                   (let [offset (int (+ (* i cols) j))]
+                     (aset possible-use offset possible)
+                     (aset actual-use   offset actual))))))
+           (row-chunks rows)))
+    {:possible-source (map-matrix deref possible-source)
+     :actual-source   (map-matrix deref actual-source)
+     :actual-sink     (map-matrix deref actual-sink)
+     :possible-use    (cell-sums-to-matrix rows cols possible-use)
+     :actual-use      (cell-sums-to-matrix rows cols actual-use)}))
+
+(defn- sum-rv-carriers
+  "Fused carrier-sums for varprop and randvars. Each chunk of rows is
+   summed in parallel into maps of {id -> RV}, which are then merged."
+  [value-type cache-layer]
+  (let [[_+_ _0_]  (case value-type
+                     :varprop  [vp/_+_ vp/_0_]
+                     :randvars [rv/_+_ rv/_0_])
+        rows       (get-rows cache-layer)
+        cols       (get-cols cache-layer)
+        add        (fn [m id x] (assoc! m id (if-let [y (get m id)] (_+_ y x) x)))
+        chunk-sums (pmap (fn [chunk]
+                           (let [sums (reduce (fn [sums {:keys [use-id source-id possible-weight actual-weight sink-effects]}]
+                                                (-> sums
+                                                    (update-in [:possible-use]    add use-id    possible-weight)
+                                                    (update-in [:actual-use]      add use-id    actual-weight)
+                                                    (update-in [:possible-source] add source-id possible-weight)
+                                                    (update-in [:actual-source]   add source-id actual-weight)
+                                                    (update-in [:actual-sink]     #(reduce-kv add % sink-effects))))
+                                              (zipmap [:possible-source :actual-source :actual-sink :possible-use :actual-use]
+                                                      (repeatedly #(transient {})))
+                                              (for [i chunk j (range cols)
+                                                    carrier (get-in cache-layer [i j])]
+                                                (assoc carrier :use-id [i j])))]
+                             (into {} (for [[k m] sums] [k (persistent! m)]))))
+                         (row-chunks rows))
+        totals     (apply merge-with (p merge-with _+_) chunk-sums)]
+    (into {}
+          (for [k [:possible-source :actual-source :actual-sink :possible-use :actual-use]]
+            [k (make-matrix rows cols #(get-in totals [k %] _0_))]))))
+
+(defn carrier-sums
+  "Computes the possible and actual source, actual sink, and possible
+   and actual use layers together in one pass over the cache-layer
+   and returns them in a map under those keywords."
+  [{:keys [value-type cache-layer]}]
+  (cond (frozen-result-graph? cache-layer)
+        (let [{:keys [rows cols]} cache-layer]
+          (into {} (for [[k totals] (sum-edges cache-layer)]
+                     [k (cell-sums-to-matrix rows cols totals)])))
+
+        (= value-type :numbers)
+        (sum-number-carriers cache-layer)
+
+        :otherwise
+        (sum-rv-carriers value-type cache-layer)))
+(def carrier-sums (run-cached :carrier-sums carrier-sums))
+
 (defn theoretical-source
   "If source-type is finite, return source-layer. Else return
    source-layer * num-users."
@@ -37,41 +160,23 @@
                       :numbers  [nb/*_ nb/_0_]
                       :varprop  [vp/*_ vp/_0_]
                       :randvars [rv/*_ rv/_0_])
-          num-users (count (remove (p = _0_) (matrix2seq use-layer)))]
+          num-users (count (nonzero-values _0_ use-layer))]
       (map-matrix (p *_ num-users) source-layer))))
-(def theoretical-source (memoize theoretical-source))
+(def theoretical-source (run-cached :theoretical-source theoretical-source))
 
 (defn possible-source
   "Returns a matrix of RVs, in which each cell contains the amount of
    its theoretical source that impacts a user along any flow path,
    disregarding the negative effects of sinks and rival users."
-  [{:keys [value-type cache-layer]}]
-  (let [[_+_ _0_] (case value-type
-                    :numbers  [nb/_+_ nb/_0_]
-                    :varprop  [vp/_+_ vp/_0_]
-                    :randvars [rv/_+_ rv/_0_])
-        coord-map (apply merge-with _+_ {}
-                         (for [cache (remove nil? (matrix2seq cache-layer))
-                               {:keys [source-id possible-weight]} cache]
-                           {source-id possible-weight}))]
-    (make-matrix (get-rows cache-layer) (get-cols cache-layer) #(get coord-map % _0_))))
-(def possible-source (memoize possible-source))
+  [params]
+  (:possible-source (carrier-sums params)))
 
 (defn actual-source
   "Returns a matrix of RVs, in which each cell contains the amount of
    its theoretical source that impacts a user along any flow path,
    including the negative effects of sinks and rival users."
-  [{:keys [value-type cache-layer]}]
-  (let [[_+_ _0_] (case value-type
-                    :numbers  [nb/_+_ nb/_0_]
-                    :varprop  [vp/_+_ vp/_0_]
-                    :randvars [rv/_+_ rv/_0_])
-        coord-map (apply merge-with _+_ {}
-                         (for [cache (remove nil? (matrix2seq cache-layer))
-                               {:keys [source-id actual-weight]} cache]
-                           {source-id actual-weight}))]
-    (make-matrix (get-rows cache-layer) (get-cols cache-layer) #(get coord-map % _0_))))
-(def actual-source (memoize actual-source))
+  [params]
+  (:actual-source (carrier-sums params)))
 
 (defn theoretical-sink
   "If sink-type is finite, return sink-layer. Else return sink-layer
@@ -91,30 +196,21 @@
                                     :numbers  [nb/_+_ nb/_* nb/*_ nb/_min_ nb/_0_]
                                     :varprop  [vp/_+_ vp/_* vp/*_ vp/_min_ vp/_0_]
                                     :randvars [rv/_+_ rv/_* rv/*_ rv/_min_ rv/_0_])
-            num-sources           (count (remove (p = _0_) (matrix2seq source-layer)))
-            num-users             (count (remove (p = _0_) (matrix2seq use-layer)))
+            num-sources           (count (nonzero-values _0_ source-layer))
+            num-users             (count (nonzero-values _0_ use-layer))
             max-flowpaths         (* num-sources num-users)
-            total-source          (reduce _+_ _0_ (remove (p = _0_) (matrix2seq source-layer)))
+            total-source          (reduce _+_ _0_ (nonzero-values _0_ source-layer))
             per-sink-limit        (if (source-type :finite)
                                     total-source
                                     (_* total-source num-users))]
         (map-matrix #(if (= _0_ %) _0_ (_min_ (*_ max-flowpaths %) per-sink-limit)) sink-layer)))))
-(def theoretical-sink (memoize theoretical-sink))
+(def theoretical-sink (run-cached :theoretical-sink theoretical-sink))
 
 (defn actual-sink
   "Returns a matrix of RVs, in which each cell contains the fraction
    of its theoretical sink that impacts a user along any flow path."
-  [{:keys [value-type cache-layer]}]
-  (let [[_+_ _0_] (case value-type
-                    :numbers  [nb/_+_ nb/_0_]
-                    :varprop  [vp/_+_ vp/_0_]
-                    :randvars [rv/_+_ rv/_0_])
-        coord-map (apply merge-with _+_ {}
-                         (for [cache (remove nil? (matrix2seq cache-layer))
-                               {:keys [sink-effects]} cache]
-                           sink-effects))]
-    (make-matrix (get-rows cache-layer) (get-cols cache-layer) #(get coord-map % _0_))))
-(def actual-sink (memoize actual-sink))
+  [params]
+  (:actual-sink (carrier-sums params)))
 
 (defn theoretical-use
   "If use-type is finite, return use-layer. Else return a new layer
@@ -128,33 +224,23 @@
                          :numbers  [nb/_+_ nb/_0_]
                          :varprop  [vp/_+_ vp/_0_]
                          :randvars [rv/_+_ rv/_0_])
-          total-source (reduce _+_ _0_ (remove (p = _0_) (matrix2seq source-layer)))]
+          total-source (reduce _+_ _0_ (nonzero-values _0_ source-layer))]
       (map-matrix #(if (not= _0_ %) total-source _0_) use-layer))))
-(def theoretical-use (memoize theoretical-use))
+(def theoretical-use (run-cached :theoretical-use theoretical-use))
 
 (defn possible-use
   "Returns a matrix of RVs, in which each cell contains the amount of
    its theoretical source that impacts a user along any flow path,
    disregarding the negative effects of sinks and rival users."
-  [{:keys [value-type cache-layer]}]
-  (let [[_+_ _0_] (case value-type
-                    :numbers  [nb/_+_ nb/_0_]
-                    :varprop  [vp/_+_ vp/_0_]
-                    :randvars [rv/_+_ rv/_0_])]
-    (map-matrix #(reduce _+_ _0_ (map :possible-weight %)) cache-layer)))
-(def possible-use (memoize possible-use))
+  [params]
+  (:possible-use (carrier-sums params)))
 
 (defn actual-use
   "Returns a matrix of RVs, in which each cell contains the amount of
    its theoretical source that impacts a user along any flow path,
    disregarding the negative effects of sinks and rival users."
-  [{:keys [value-type cache-layer]}]
-  (let [[_+_ _0_] (case value-type
-                    :numbers  [nb/_+_ nb/_0_]
-                    :varprop  [vp/_+_ vp/_0_]
-                    :randvars [rv/_+_ rv/_0_])]
-    (map-matrix #(reduce _+_ _0_ (map :actual-weight %)) cache-layer)))
-(def actual-use (memoize actual-use))
+  [params]
+  (:actual-use (carrier-sums params)))
 
 (defn possible-flow
   [params]
@@ -222,84 +308,76 @@
 ;;      (actual-source cache-layer))))
 ;;(def actual-flow (memoize actual-flow))
 
+(defn- typed-rv-fn
+  "Returns the rv-fn from the run's :math-context (which compiles each
+   form only once for numbers), or the one for value-type if params
+   has no math context."
+  [{:keys [value-type math-context]}]
+  (or (get-in math-context [:ops 'rv-fn])
+      (case value-type
+        :numbers  nb/rv-fn
+        :varprop  vp/rv-fn
+        :randvars rv/rv-fn)))
+
 (defn inaccessible-source
   "Returns a map of {location-id -> inaccessible-source}.
    Inaccessible-source is the amount of the theoretical-source which
    cannot be used by any location either due to propagation decay,
    lack of use capacity, or lack of flow pathways to use locations."
-  [{:keys [value-type source-type source-layer use-layer cache-layer]}]
-  (let [rv-fn (case value-type
-                :numbers  nb/rv-fn
-                :varprop  vp/rv-fn
-                :randvars rv/rv-fn)]
+  [params]
+  (let [rv-fn (typed-rv-fn params)]
     (map-matrix #(rv-fn '(fn [t p] (max (- t p) 0.0)) %1 %2)
-                (theoretical-source {:value-type value-type :source-type source-type :source-layer source-layer :use-layer use-layer})
-                (possible-source    {:value-type value-type :cache-layer cache-layer}))))
+                (theoretical-source params)
+                (possible-source    params))))
 
 (defn inaccessible-sink
   "Returns a map of {location-id -> inaccessible-sink}.
    Inaccessible-sink is the amount of the theoretical-sink which
    cannot be utilized by any location either due to propagation decay
    of the asset or lack of flow pathways through the sink locations."
-  [{:keys [value-type source-type sink-type source-layer sink-layer use-layer cache-layer]}]
-  (let [rv-fn (case value-type
-                :numbers  nb/rv-fn
-                :varprop  vp/rv-fn
-                :randvars rv/rv-fn)]
+  [params]
+  (let [rv-fn (typed-rv-fn params)]
     (map-matrix #(rv-fn '(fn [t a] (max (- t a) 0.0)) %1 %2)
-                (theoretical-sink {:value-type value-type :source-type source-type :sink-type sink-type
-                                   :source-layer source-layer :sink-layer sink-layer :use-layer use-layer})
-                (actual-sink      {:value-type value-type :cache-layer cache-layer}))))
+                (theoretical-sink params)
+                (actual-sink      params))))
 
 (defn inaccessible-use
   "Returns a map of {location-id -> inaccessible-use}.
    Inaccessible-use is the amount of the theoretical-use which cannot
    be utilized by each location either due to propagation decay of the
    asset or lack of flow pathways to use locations."
-  [{:keys [value-type use-type source-layer use-layer cache-layer]}]
-  (let [rv-fn (case value-type
-                :numbers  nb/rv-fn
-                :varprop  vp/rv-fn
-                :randvars rv/rv-fn)]
+  [params]
+  (let [rv-fn (typed-rv-fn params)]
     (map-matrix #(rv-fn '(fn [t p] (max (- t p) 0.0)) %1 %2)
-                (theoretical-use {:value-type value-type :use-type use-type :source-layer source-layer :use-layer use-layer})
-                (possible-use    {:value-type value-type :cache-layer cache-layer}))))
+                (theoretical-use params)
+                (possible-use    params))))
 
 (defn blocked-source
   "Returns a map of {location-id -> blocked-source}.
    Blocked-source is the amount of the possible-source which cannot be
    used by any location due to upstream sinks or uses."
-  [{:keys [value-type cache-layer]}]
-  (let [rv-fn (case value-type
-                :numbers  nb/rv-fn
-                :varprop  vp/rv-fn
-                :randvars rv/rv-fn)]
+  [params]
+  (let [rv-fn (typed-rv-fn params)]
     (map-matrix #(rv-fn '(fn [p a] (max (- p a) 0.0)) %1 %2)
-                (possible-source {:value-type value-type :cache-layer cache-layer})
-                (actual-source   {:value-type value-type :cache-layer cache-layer}))))
+                (possible-source params)
+                (actual-source   params))))
 
 (defn blocked-use
   "Returns a map of {location-id -> blocked-use}.
    Blocked-use is the amount of the possible-use which cannot be
    realized due to upstream sinks or uses."
-  [{:keys [value-type cache-layer]}]
-  (let [rv-fn (case value-type
-                :numbers  nb/rv-fn
-                :varprop  vp/rv-fn
-                :randvars rv/rv-fn)]
+  [params]
+  (let [rv-fn (typed-rv-fn params)]
     (map-matrix #(rv-fn '(fn [p a] (max (- p a) 0.0)) %1 %2)
-                (possible-use {:value-type value-type :cache-layer cache-layer})
-                (actual-use   {:value-type value-type :cache-layer cache-layer}))))
+                (possible-use params)
+                (actual-use   params))))
 
 (defn blocked-flow
   "Returns a map of {location-id -> blocked-flow}.
    Blocked-flow is the amount of the possible-flow which cannot be
    realized due to upstream sinks or uses."
-  [{:keys [value-type possible-flow-layer actual-flow-layer]}]
-  (let [rv-fn (case value-type
-                :numbers  nb/rv-fn
-                :varprop  vp/rv-fn
-                :randvars rv/rv-fn)]
+  [{:keys [possible-flow-layer actual-flow-layer] :as params}]
+  (let [rv-fn (typed-rv-fn params)]
     (map-matrix #(rv-fn '(fn [p a] (max (- p a) 0.0)) %1 %2)
                 possible-flow-layer
                 actual-flow-layer)))
@@ -0,0 +1,259 @@
+;;; Copyright 2010-2013 Gary Johnson
+;;;
+;;; This file is part of clj-span.
+;;;
+;;; clj-span is free software: you can redistribute it and/or modify
+;;; it under the terms of the GNU General Public License as published
+;;; by the Free Software Foundation, either version 3 of the License,
+;;; or (at your option) any later version.
+;;;
+;;; clj-span is distributed in the hope that it will be useful, but
+;;; WITHOUT ANY WARRANTY; without even the implied warranty of
+;;; MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+;;; General Public License for more details.
+;;;
+;;; You should have received a copy of the GNU General Public License
+;;; along with clj-span.  If not, see <http://www.gnu.org/licenses/>.
+;;;
+;;;-------------------------------------------------------------------
+;;;
+;;; This namespace lets the carrier-stepping flow models
+;;; (SedimentTransport and FloodWaterMovement) save their state to a
+;;; checkpoint file between timesteps and later resume from it.
+;;;
+;;; A checkpoint holds the carriers still in flight, the remaining
+;;; overland and floodplain sink capacities, the possible and actual
+;;; flow layers, and the carriers stored so far in the cache-layer. It
+;;; is written as a gzipped stream of DataOutput primitives: ids as
+;;; pairs of ints, numbers as doubles, varprop values as (mean, var)
+;;; pairs of doubles, and randvars as counted lists of (state, prob)
+;;; pairs. A carrier's route is written only if it has one, so the
+;;; carriers stored with :route nil are restored that way. Each
+;;; checkpoint is written to a temporary file and then moved over the
+;;; previous one, so a crash while writing never destroys the last
+;;; good checkpoint.
+;;;
+;;; Checkpointing is enabled by the :checkpoint-file parameter. A
+;;; checkpoint is written every :checkpoint-interval seconds (default
+;;; 600), and a run with :resume? true continues from the checkpoint
+;;; file if it exists.
+
+(ns clj-span.checkpoint
+  (:use [clj-misc.utils            :only (iterate-while-seq)]
+        [clj-misc.grid             :only (reset-in!)]
+        [clj-misc.matrix-ops       :only (get-rows get-cols)]
+        [clj-span.thinklab-monitor :only (monitor-info)])
+  (:require (clj-misc [varprop :as vp] [randvars :as rv]))
+  (:import (java.io File DataInputStream DataOutputStream
+                    BufferedInputStream BufferedOutputStream
+                    FileInputStream FileOutputStream)
+           (java.nio.file Files StandardCopyOption CopyOption)
+           (java.util.zip GZIPInputStream GZIPOutputStream)))
+
+(refer 'clj-span.core :only '(service-carrier))
+
+(def ^:private magic   0x5350414E) ;; "SPAN"
+(def ^:private version 2)
+
+(def default-checkpoint-interval 600)
+
+(def ^:private sink-cap-keys [:overland-sink-caps :floodplain-sink-caps])
+
+;;; Writing
+
+(defn- io-file ^File [filename] (File. (str filename)))
+
+(defn- write-id
+  [^DataOutputStream out [i j]]
+  (.writeInt out (int i))
+  (.writeInt out (int j)))
+
+(defn- write-value
+  [value-type ^DataOutputStream out x]
+  (case value-type
+    :numbers  (.writeDouble out (double x))
+    :varprop  (do (.writeDouble out (double (:mean x)))
+                  (.writeDouble out (double (:var x))))
+    :randvars (do (.writeBoolean out (= (type x) ::rv/continuous-distribution))
+                  (.writeInt out (count x))
+                  (doseq [[state prob] x]
+                    (.writeDouble out (double state))
+                    (.writeDouble out (double prob))))))
+
+(defn- write-optional-value
+  [value-type ^DataOutputStream out x]
+  (.writeBoolean out (some? x))
+  (if (some? x) (write-value value-type out x)))
+
+(defn- write-carrier
+  [value-type ^DataOutputStream out {:keys [source-id route possible-weight actual-weight sink-effects stream-bound?]}]
+  (write-id out source-id)
+  (.writeBoolean out (some? route))
+  (when (some? route)
+    (.writeInt out (count route))
+    (doseq [id route] (write-id out id)))
+  (write-optional-value value-type out possible-weight)
+  (write-optional-value value-type out actual-weight)
+  (.writeInt out (count sink-effects))
+  (doseq [[id x] sink-effects]
+    (write-id out id)
+    (write-value value-type out x))
+  (.writeBoolean out (boolean stream-bound?)))
+
+(defn- write-carriers
+  [value-type ^DataOutputStream out carriers]
+  (.writeInt out (count carriers))
+  (doseq [carrier carriers] (write-carrier value-type out carrier)))
+
+(defn- write-checkpoint!
+  [{:keys [checkpoint-file flow-model value-type possible-flow-layer actual-flow-layer cache-layer] :as params}
+   step carriers]
+  (let [file     (io-file checkpoint-file)
+        tmp-file (File. (str checkpoint-file ".tmp"))
+        rows     (get-rows cache-layer)
+        cols     (get-cols cache-layer)
+        cached   (vec (for [i (range rows) j (range cols)
+                            :let [carriers (deref (get-in cache-layer [i j]))]
+                            :when (seq carriers)]
+                        [[i j] carriers]))]
+    (with-open [out (DataOutputStream. (BufferedOutputStream. (GZIPOutputStream. (FileOutputStream. tmp-file))))]
+      (.writeInt out magic)
+      (.writeInt out version)
+      (.writeUTF out flow-model)
+      (.writeUTF out (name value-type))
+      (.writeInt out rows)
+      (.writeInt out cols)
+      (.writeLong out step)
+      (write-carriers value-type out carriers)
+      (doseq [k sink-cap-keys :let [caps (params k)]]
+        (.writeInt out (count caps))
+        (doseq [[id cap-ref] caps]
+          (write-id out id)
+          (write-value value-type out (deref cap-ref))))
+      (doseq [layer [possible-flow-layer actual-flow-layer] i (range rows) j (range cols)]
+        (write-value value-type out (deref (get-in layer [i j]))))
+      (.writeInt out (count cached))
+      (doseq [[id carriers] cached]
+        (write-id out id)
+        (write-carriers value-type out carriers)))
+    (Files/move (.toPath tmp-file) (.toPath file)
+                (into-array CopyOption [StandardCopyOption/REPLACE_EXISTING StandardCopyOption/ATOMIC_MOVE]))))
+
+;;; Reading
+
+(defn- read-id
+  [^DataInputStream in]
+  (let [i (.readInt in)
+        j (.readInt in)]
+    [i j]))
+
+(defn- read-value
+  [value-type ^DataInputStream in]
+  (case value-type
+    :numbers  (.readDouble in)
+    :varprop  (let [mean (.readDouble in)
+                    var  (.readDouble in)]
+                (vp/fuzzy-number mean var))
+    :randvars (let [continuous? (.readBoolean in)
+                    n           (.readInt in)]
+                (with-meta (into {} (repeatedly n #(let [state (.readDouble in)
+                                                         prob  (.readDouble in)]
+                                                     [state prob])))
+                  (if continuous? rv/cont-type rv/disc-type)))))
+
+(defn- read-optional-value
+  [value-type ^DataInputStream in]
+  (if (.readBoolean in) (read-value value-type in)))
+
+(defn- read-carrier
+  [value-type ^DataInputStream in]
+  (let [source-id       (read-id in)
+        route           (if (.readBoolean in)
+                              (vec (repeatedly (.readInt in) #(read-id in))))
+        possible-weight (read-optional-value value-type in)
+        actual-weight   (read-optional-value value-type in)
+        sink-effects    (into {} (repeatedly (.readInt in) #(let [id (read-id in)]
+                                                              [id (read-value value-type in)])))
+        stream-bound?   (.readBoolean in)]
+    (struct-map service-carrier
+      :source-id       source-id
+      :route           route
+      :possible-weight possible-weight
+      :actual-weight   actual-weight
+      :sink-effects    sink-effects
+      :stream-bound?   stream-bound?)))
+
+(defn- read-carriers
+  [value-type ^DataInputStream in]
+  (doall (repeatedly (.readInt in) #(read-carrier value-type in))))
+
+(defn- restore-checkpoint!
+  "Reads checkpoint-file, copies its sink capacities, flow layers, and
+   cache-layer contents into those in params, and returns [step
+   carriers]. Throws an exception if the checkpoint was written by a
+   run with a different flow-model, value-type, or grid size."
+  [{:keys [checkpoint-file flow-model value-type possible-flow-layer actual-flow-layer cache-layer] :as params}]
+  (with-open [in (DataInputStream. (BufferedInputStream. (GZIPInputStream. (FileInputStream. (io-file checkpoint-file)))))]
+    (let [header [(.readInt in) (.readInt in) (.readUTF in) (.readUTF in) (.readInt in) (.readInt in)]
+          rows   (get-rows cache-layer)
+          cols   (get-cols cache-layer)]
+      (if (not= header [magic version flow-model (name value-type) rows cols])
+        (throw (Exception. (str "Checkpoint file " checkpoint-file " does not match this " flow-model
+                                " run (" (name value-type) ", " rows "x" cols ")."))))
+      (let [step     (.readLong in)
+            carriers (read-carriers value-type in)]
+        (dosync
+         (doseq [k sink-cap-keys :let [caps (params k)]]
+           (dotimes [_ (.readInt in)]
+             (let [id  (read-id in)
+                   cap (read-value value-type in)]
+               (if-let [cap-ref (caps id)]
+                 (ref-set cap-ref cap)))))
+         (doseq [layer [possible-flow-layer actual-flow-layer] i (range rows) j (range cols)]
+           (reset-in! layer [i j] (read-value value-type in)))
+         (dotimes [_ (.readInt in)]
+           (let [id (read-id in)]
+             (ref-set (get-in cache-layer id) (read-carriers value-type in)))))
+        [step carriers]))))
+
+;;; Public API
+
+(defn iterate-with-checkpoints
+  "Like (iterate-while-seq f (create-carriers params)). If params has
+   a :checkpoint-file, the simulation state is also written to it
+   before each step whenever :checkpoint-interval seconds have passed
+   since the last write. If params has :resume? true and the
+   checkpoint file exists, the state saved in it is first restored
+   into params, and iteration starts from its carriers rather than
+   from (create-carriers params)."
+  [{:keys [checkpoint-file checkpoint-interval resume? flow-model monitor] :as params} f create-carriers]
+  (if-not checkpoint-file
+    (iterate-while-seq f (create-carriers params))
+    (let [[step carriers] (if (and resume? (.exists (io-file checkpoint-file)))
+                            (let [[step carriers :as checkpoint] (restore-checkpoint! params)]
+                              (monitor-info monitor (str "resuming " flow-model " from step " step
+                                                         " of checkpoint " checkpoint-file))
+                              checkpoint)
+                            [0 (create-carriers params)])
+          interval-ns     (* 1e9 (or checkpoint-interval default-checkpoint-interval))
+          step            (atom step)
+          last-write      (atom (System/nanoTime))]
+      (iterate-while-seq
+       (fn [carriers]
+         ;; Realizing carriers waits for the previous step to finish,
+         ;; so no other carrier is in flight when we write.
+         (let [carriers (doall carriers)]
+           (when (>= (- (System/nanoTime) @last-write) interval-ns)
+             (write-checkpoint! params @step carriers)
+             (monitor-info monitor (str "wrote checkpoint at step " @step " to " checkpoint-file))
+             (reset! last-write (System/nanoTime)))
+           (swap! step inc)
+           (f carriers)))
+       carriers))))
+
+(defn remove-checkpoint!
+  "Deletes the checkpoint file of params (if any). Flow models call
+   this once their carriers have stopped moving."
+  [{:keys [checkpoint-file]}]
+  (if checkpoint-file
+    (.delete (io-file checkpoint-file))))
@@ -24,12 +24,19 @@
 ;;; map of {keywords -> native clojure types} and passes this to the
 ;;; clj-span.core/run-span function, requesting a command line menu
 ;;; for the results.
+;;;
+;;; The source, sink, and use layer files (and the values of the map
+;;; in the flow layers file) may also name raw little-endian float32
+;;; or float64 rasters with a sidecar .hdr file (see
+;;; clj-misc.grid/read-raster-header). These are memory-mapped rather
+;;; than read onto the heap.
 
 (ns clj-span.commandline
   (:gen-class)
   (:use [clj-span.core     :only (run-span)]
         [clj-misc.utils    :only (def- &)]
         [clj-span.worldgen :only (read-layer-from-file)]
+        [clj-misc.grid     :only (raster-file? map-raster-file)]
         [clojure.string    :only (join)]
         [clojure.set       :only (difference) :as set]
         [clojure.java.io   :only (file) :as io]))
@@ -56,12 +63,24 @@
    "            -benefit-type       <rival|non-rival>          \\ \n"
    "            -value-type         <numbers|varprop|randvars> \\ \n"
    "            -animation?         <true|false>      \\ \n"
-   "            -flow-model         <line-of-sight|proximity|carbon|flood-water|surface-water|sediment|coastal-storm-protection|subsistence-fisheries> \n"))
+   "            -flow-model         <line-of-sight|proximity|carbon|flood-water|surface-water|sediment|coastal-storm-protection|subsistence-fisheries> \n"
+   "\n"
+   "       Optional (sediment and flood-water only):\n"
+   "            -checkpoint-file     <filepath>\n"
+   "            -checkpoint-interval <seconds>\n"
+   "            -resume?             <true|false>\n"
+   "\n"
+   "       Optional (line-of-sight and proximity with numbers only):\n"
+   "            -tile-size           <integer>\n"
+   "            -tile-dir            <dirpath>\n"))
+
+(def- readable-layer?
+  #(or (raster-file? %) (.canRead (io/file (io/resource %)))))
 
 (def- param-tests
-  [["-source-layer"       #(.canRead  (io/file (io/resource %))) " is not readable."                             ]
-   ["-sink-layer"         #(.canRead  (io/file (io/resource %))) " is not readable."                             ]
-   ["-use-layer"          #(.canRead  (io/file (io/resource %))) " is not readable."                             ]
+  [["-source-layer"       readable-layer?                        " is not readable."                             ]
+   ["-sink-layer"         readable-layer?                        " is not readable."                             ]
+   ["-use-layer"          readable-layer?                        " is not readable."                             ]
    ["-flow-layers"        #(.canRead  (io/file (io/resource %))) " is not readable."                             ]
    ["-source-threshold"   (& float?   read-string)               " is not a double."                             ]
    ["-sink-threshold"     (& float?   read-string)               " is not a double."                             ]
@@ -80,11 +99,25 @@
    ["-flow-model"         #{"line-of-sight" "proximity" "carbon" "flood-water" "surface-water" "sediment" "coastal-storm-protection" "subsistence-fisheries"}
     " must be one of line-of-sight, proximity, carbon, flood-water, surface-water, sediment, coastal-storm-protection, or subsistence-fisheries."]])
 
+(def- optional-param-tests
+  [["-checkpoint-file"     (complement empty?)                          " is not a filepath."           ]
+   ["-checkpoint-interval" (& #(and (number? %) (>= % 0)) read-string)  " is not a number of seconds."  ]
+   ["-resume?"             #{"true" "false"}                            " must be one of true or false."]
+   ["-tile-size"           (& #(and (integer? %) (>= % 1)) read-string) " is not a positive integer."   ]
+   ["-tile-dir"            (complement empty?)                          " is not a directory path."     ]])
+
 (defn- non-existent-params
   [params param-tests]
   (map #(str % " is not a valid parameter name.")
        (set/difference (set (keys params))
-                       (set (map first param-tests)))))
+                       (set (map first (concat param-tests optional-param-tests))))))
+
+(defn- bad-optional-values
+  [params optional-param-tests]
+  (for [[name test? error-suffix] optional-param-tests
+        :let [value (params name)]
+        :when (and value (not (test? value)))]
+    (str value error-suffix)))
 
 (defn- missing-or-bad-values
   [params param-tests]
@@ -96,43 +129,69 @@
 (defn- collect-input-errors
   "Returns a seq of error messages if the params map does not:
      1) Include all parameter names in param-tests.
-     2) Provide valid values for all parameters in param-tests.
-     3) Contain parameter names not in param-tests."
+     2) Provide valid values for all parameters in param-tests and
+        for any parameters given from optional-param-tests.
+     3) Contain parameter names not in param-tests or
+        optional-param-tests."
   [params]
   (concat (non-existent-params   params param-tests)
-          (missing-or-bad-values params param-tests)))
+          (missing-or-bad-values params param-tests)
+          (bad-optional-values   params optional-param-tests)))
+
+(defn- read-layer
+  "Memory-maps filename if it is a raw binary raster with a sidecar
+   header (see clj-misc.grid/read-raster-header). Otherwise, reads a
+   matrix from it with read-layer-from-file."
+  [filename]
+  (if (raster-file? filename)
+    (map-raster-file filename)
+    (read-layer-from-file filename)))
+
+(defn- read-flow-layers
+  "Reads a map of {names -> matrices} from filename. Any values in
+   the map which are strings are treated as the filenames of raw
+   binary rasters and memory-mapped."
+  [filename]
+  (into {}
+        (for [[name layer] (read-layer-from-file filename)]
+          [name (if (string? layer) (map-raster-file layer) layer)])))
 
 (defn- strings-to-better-types
   "Converts params from a map of {strings -> strings} into a map
    of {keywords -> native clojure types}."
   [params]
-  {:source-layer       (read-layer-from-file (params "-source-layer"))
-   :sink-layer         (read-layer-from-file (params "-sink-layer"))
-   :use-layer          (read-layer-from-file (params "-use-layer"))
-   :flow-layers        (read-layer-from-file (params "-flow-layers"))
-   :source-threshold   (read-string (params "-source-threshold"))
-   :sink-threshold     (read-string (params "-sink-threshold"))
-   :use-threshold      (read-string (params "-use-threshold"))
-   :trans-threshold    (read-string (params "-trans-threshold"))
-   :cell-width         (read-string (params "-cell-width"))
-   :cell-height        (read-string (params "-cell-height"))
-   :rv-max-states      (read-string (params "-rv-max-states"))
-   :downscaling-factor (read-string (params "-downscaling-factor"))
-   :source-type        (keyword (params "-source-type"))
-   :sink-type          (keyword (params "-sink-type"))
-   :use-type           (keyword (params "-use-type"))
-   :benefit-type       (keyword (params "-benefit-type"))
-   :value-type         (keyword (params "-value-type"))
-   :animation?         (read-string (params "-animation?"))
-   :flow-model         ({"line-of-sight"            "LineOfSight"
-                         "proximity"                "Proximity"
-                         "carbon"                   "CO2Removed"
-                         "flood-water"              "FloodWaterMovement"
-                         "surface-water"            "SurfaceWaterMovement"
-                         "sediment"                 "SedimentTransport"
-                         "coastal-storm-protection" "CoastalStormMovement"
-                         "subsistence-fisheries"    "SubsistenceFishAccessibility"}
-                        (params "-flow-model"))})
+  {:source-layer        (read-layer       (params "-source-layer"))
+   :sink-layer          (read-layer       (params "-sink-layer"))
+   :use-layer           (read-layer       (params "-use-layer"))
+   :flow-layers         (read-flow-layers (params "-flow-layers"))
+   :source-threshold    (read-string (params "-source-threshold"))
+   :sink-threshold      (read-string (params "-sink-threshold"))
+   :use-threshold       (read-string (params "-use-threshold"))
+   :trans-threshold     (read-string (params "-trans-threshold"))
+   :cell-width          (read-string (params "-cell-width"))
+   :cell-height         (read-string (params "-cell-height"))
+   :rv-max-states       (read-string (params "-rv-max-states"))
+   :downscaling-factor  (read-string (params "-downscaling-factor"))
+   :source-type         (keyword (params "-source-type"))
+   :sink-type           (keyword (params "-sink-type"))
+   :use-type            (keyword (params "-use-type"))
+   :benefit-type        (keyword (params "-benefit-type"))
+   :value-type          (keyword (params "-value-type"))
+   :animation?          (read-string (params "-animation?"))
+   :flow-model          ({"line-of-sight"            "LineOfSight"
+                          "proximity"                "Proximity"
+                          "carbon"                   "CO2Removed"
+                          "flood-water"              "FloodWaterMovement"
+                          "surface-water"            "SurfaceWaterMovement"
+                          "sediment"                 "SedimentTransport"
+                          "coastal-storm-protection" "CoastalStormMovement"
+                          "subsistence-fisheries"    "SubsistenceFishAccessibility"}
+                         (params "-flow-model"))
+   :checkpoint-file     (params "-checkpoint-file")
+   :checkpoint-interval (some-> (params "-checkpoint-interval") read-string)
+   :resume?             (= "true" (params "-resume?"))
+   :tile-size           (some-> (params "-tile-size") read-string)
+   :tile-dir            (params "-tile-dir")})
 
 (defn read-config-file
   [filename]
@@ -164,7 +223,9 @@
                         usage-message))
           (do
             (println "\nAll inputs are valid.\n")
-            (doseq [[name _ _] param-tests] (println (find params name)))
+            (doseq [[name _ _] (concat param-tests optional-param-tests)
+                    :when (contains? params name)]
+              (println (find params name)))
             (newline)
             ;; Run the SPAN simulation.
             (run-span (assoc (strings-to-better-types params) :result-type :cli-menu))))))))
@@ -20,22 +20,35 @@
 ;;; This namespace defines the run-span function, which is the main
 ;;; entry point into the SPAN system and may be called with a number
 ;;; of different options specifying the form of its results.
+;;; create-span-session and run-span-session split run-span in two so
+;;; that several flow models may be run over the same preprocessed
+;;; input layers. Given a :tile-size, run-span instead runs flow
+;;; models with a bounded reach one tile at a time (see
+;;; run-span-tiled).
 
 (ns clj-span.core
-  (:use [clj-misc.utils            :only (p & with-message)]
+  (:use [clj-misc.utils            :only (p & with-message bounded-pmap make-identity-cache identity-cached)]
         [clj-misc.matrix-ops       :only (map-matrix
                                           make-matrix
                                           resample-matrix
+                                          numeric-intensive-block-sampler
                                           matrix2seq
                                           matrix-max
                                           get-rows
                                           get-cols
                                           grids-align?
                                           is-matrix?
-                                          filter-matrix-for-coords)]
-        [clj-span.interface        :only [provide-results]]
+                                          filter-matrix-for-coords
+                                          nonzero-coords
+                                          submatrix
+                                          *report-distinct-values*
+                                          tile-grid)]
+        [clj-misc.grid             :only [make-accumulator-grid make-sparse-grid create-raster-file write-raster-window! map-raster-file]]
+        [clj-span.result-graph     :only [make-result-graph result-graph? freeze-result-graph count-users]]
+        [clj-span.interface        :only [provide-results label-to-keyword]]
         [clj-span.gui              :only [with-animation]]
-        [clj-span.analyzer         :only [theoretical-source
+        [clj-span.analyzer         :only [make-result-cache
+                                          theoretical-source
                                           inaccessible-source
                                           possible-source
                                           blocked-source
@@ -51,28 +64,28 @@
                                           possible-flow
                                           blocked-flow
                                           actual-flow]]
-        [clj-span.thinklab-monitor :only (monitor-info with-error-monitor with-interrupt-checking)])
-  (:require (clj-misc [numbers :as nb] [varprop :as vp] [randvars :as rv]))
-  (:import (org.integratedmodelling.thinklab.api.listeners IMonitor)))
-
-(defmacro with-typed-math-syms-single-thread [value-type symbols & body]
-  (let [prob-ns (gensym)]
-    `(let [~prob-ns (case ~value-type
-                      :numbers  'clj-misc.numbers
-                      :varprop  'clj-misc.varprop
-                      :randvars 'clj-misc.randvars)]
-       (binding ~(vec (mapcat (fn [sym] [sym `(var-get (ns-resolve ~prob-ns '~sym))]) symbols))
-         ~@body))))
+        [clj-span.thinklab-monitor :only (monitor-info monitor-progress-steps stage-step with-stage-metrics
+                                          with-error-monitor with-interrupt-checking check-interrupt)])
+  (:require (clj-misc [numbers :as nb] [varprop :as vp] [randvars :as rv])
+            [clojure.java.io :as io])
+  (:import (org.integratedmodelling.thinklab.api.listeners IMonitor)
+           (java.nio.file Files)
+           (java.nio.file.attribute FileAttribute)))
 
-(defmacro with-typed-math-syms [value-type symbols & body]
-  (let [prob-ns (gensym)]
-    `(let [~prob-ns (case ~value-type
-                      :numbers  'clj-misc.numbers
-                      :varprop  'clj-misc.varprop
-                      :randvars 'clj-misc.randvars)]
-       ~@(map (fn [sym] `(alter-var-root (var ~sym) (constantly (var-get (ns-resolve ~prob-ns '~sym)))))
-              symbols)
-       ~@body)))
+(defmacro with-math-context
+  "Evaluates body with rv/*rv-max-states* and each of symbols (dynamic
+   vars in the calling namespace, such as _+_ or rv-fn) bound to their
+   values in math-context (see make-math-context). These are
+   thread-local bindings, so runs with different value-types or
+   rv-max-states may proceed at the same time in one JVM. Bindings are
+   conveyed to pmap and future threads, but work handed to a fork/join
+   pool (e.g. by r/fold) must be wrapped with bound-fn*."
+  [math-context symbols & body]
+  (let [ctx (gensym)]
+    `(let [~ctx ~math-context]
+       (binding [rv/*rv-max-states* (:rv-max-states ~ctx)
+                 ~@(mapcat (fn [sym] [sym `(get-in ~ctx [:ops '~sym])]) symbols)]
+         ~@body))))
 
 (defstruct service-carrier
   :source-id      ; starting id of this flow path
@@ -97,6 +110,15 @@
   [{:keys [flow-model]}]
   (throw (Exception. (str "distribute-flow! is undefined for flow-model " flow-model))))
 
+(defmulti tile-halo
+  "Returns the farthest distance in meters from a cell at which a
+   source, sink, use, or route cell may affect its results, or nil if
+   the flow model has no such bound. Flow models with a tile-halo may
+   be run tile by tile (see run-span-tiled)."
+  :flow-model)
+
+(defmethod tile-halo :default [_] nil)
+
 ;; Pull in model namespaces that use service-carrier and distribute-flow!
 (require '(clj-span.models carbon
                            proximity
@@ -114,7 +136,8 @@
     :as params}]
   (monitor-info monitor "registering SPAN simulation output analyzers")
   (with-error-monitor ^IMonitor monitor
-    (let [rv-intensive-sampler (case value-type
+    (let [params               (assoc params :result-cache (make-result-cache))
+          rv-intensive-sampler (case value-type
                                  :numbers  nb/rv-intensive-sampler
                                  :varprop  vp/rv-intensive-sampler
                                  :randvars rv/rv-intensive-sampler)]
@@ -125,10 +148,13 @@
                (mapcat (fn [[label val]]
                          (if val
                            (with-message (str "Adding " label " to computable outputs...") "done"
-                             [label #(let [matrix (if (fn? val) (val params) val)]
-                                       (if (is-matrix? matrix)
-                                         (resample-matrix orig-rows orig-cols rv-intensive-sampler matrix)
-                                         matrix))])))
+                             ;; bound-fn keeps this run's rv-max-states when
+                             ;; the closure is called after run-span returns
+                             [label (bound-fn []
+                                      (let [matrix (if (fn? val) (val params) val)]
+                                        (if (is-matrix? matrix)
+                                          (resample-matrix orig-rows orig-cols rv-intensive-sampler matrix)
+                                          matrix)))])))
                        (if possible-use-layer 
                          ;; our SPAN simulation pre-generated the layers -> return layers
                          (array-map
@@ -177,7 +203,9 @@
       params
       ;; our SPAN simulation simply generated the cache-layer
       (assoc params
-        :cache-layer         (map-matrix (& seq deref) cache-layer)
+        :cache-layer         (if (result-graph? cache-layer)
+                               (freeze-result-graph cache-layer)
+                               (map-matrix (& seq deref) cache-layer))
         :possible-flow-layer (map-matrix deref possible-flow-layer)
         :actual-flow-layer   (map-matrix deref actual-flow-layer)))))
 
@@ -187,9 +215,14 @@
               :numbers  nb/_0_
               :varprop  vp/_0_
               :randvars rv/_0_)]
-    (if possible-use-layer
-      (count (filter-matrix-for-coords (p not= _0_) possible-use-layer))
-      (count (filter (& seq deref) (matrix2seq cache-layer))))))
+    (cond possible-use-layer
+          (count (filter-matrix-for-coords (p not= _0_) possible-use-layer))
+
+          (result-graph? cache-layer)
+          (count-users (freeze-result-graph cache-layer))
+
+          :otherwise
+          (count (filter (& seq deref) (matrix2seq cache-layer))))))
 
 (defn run-simulation
   [{:keys [flow-model source-layer source-points use-points animation?
@@ -211,9 +244,57 @@
           (do (println "Either source or use is zero everywhere. Therefore, there can be no service flow.")
               params))))))
 
+(defn find-simulation-points
+  "Stores the coordinates of all non-zero source, sink, and use cells
+   in params. Since preprocess-data-layers makes these layers sparse,
+   only their non-zero cells are visited."
+  [{:keys [source-layer sink-layer use-layer value-type] :as params}]
+  (let [_0_ (case value-type
+              :numbers  nb/_0_
+              :varprop  vp/_0_
+              :randvars rv/_0_)]
+    (assoc params
+      :source-points (nonzero-coords _0_ source-layer)
+      :sink-points   (nonzero-coords _0_ sink-layer)
+      :use-points    (nonzero-coords _0_ use-layer))))
+
+;; These flow models read and ref-set their flow layer cells rather
+;; than only summing into them with accumulate-in!, so they always
+;; need flow layers made of refs.
+(def ref-flow-models #{"SurfaceWaterMovement"})
+
+;; These flow models only add carriers to the cache-layer with
+;; store-carrier-in!, so they may store numbers results in a compact
+;; result graph instead.
+(def result-graph-models #{"LineOfSight" "Proximity"})
+
+(defn create-simulation-accumulators
+  "Stores fresh cache, possible-flow, and actual-flow layers in
+   params. These are the only simulation inputs which are modified by
+   distribute-flow!. For the numbers value-type, the flow layers are
+   lock-free accumulator grids (see clj-misc.grid/accumulate-in!)
+   unless the flow model is in ref-flow-models, and the cache-layer is
+   a result graph (see clj-span.result-graph) if the flow model is in
+   result-graph-models."
+  [{:keys [rows cols value-type flow-model] :as params}]
+  (let [_0_        (case value-type
+                     :numbers  nb/_0_
+                     :varprop  vp/_0_
+                     :randvars rv/_0_)
+        flow-layer (if (and (= value-type :numbers)
+                            (not (ref-flow-models flow-model)))
+                     #(make-accumulator-grid rows cols)
+                     #(make-matrix rows cols (fn [_] (ref _0_))))]
+    (assoc params
+      :cache-layer         (if (and (= value-type :numbers)
+                                    (result-graph-models flow-model))
+                             (make-result-graph rows cols)
+                             (make-matrix rows cols (fn [_] (ref ()))))
+      :possible-flow-layer (flow-layer)
+      :actual-flow-layer   (flow-layer))))
+
 (defn create-simulation-inputs
-  [{:keys [source-layer sink-layer use-layer rows cols value-type monitor]
-    :as params}]
+  [{:keys [monitor] :as params}]
   (monitor-info monitor "creating SPAN simulation inputs")
   (with-error-monitor ^IMonitor monitor
     (with-message
@@ -221,69 +302,83 @@
       #(str "Source points: " (count (:source-points %)) "\n"
             "Sink points:   " (count (:sink-points   %)) "\n"
             "Use points:    " (count (:use-points    %)))
-      (let [_0_ (case value-type
-                  :numbers  nb/_0_
-                  :varprop  vp/_0_
-                  :randvars rv/_0_)]
-        (assoc params
-          :source-points       (filter-matrix-for-coords (p not= _0_) source-layer)
-          :sink-points         (filter-matrix-for-coords (p not= _0_) sink-layer)
-          :use-points          (filter-matrix-for-coords (p not= _0_) use-layer)
-          :cache-layer         (make-matrix rows cols (fn [_] (ref ())))
-          :possible-flow-layer (make-matrix rows cols (fn [_] (ref _0_)))
-          :actual-flow-layer   (make-matrix rows cols (fn [_] (ref _0_))))))))
+      (-> params
+          find-simulation-points
+          create-simulation-accumulators))))
 
 (defn zero-layer-below-threshold
   "Takes a two dimensional array of RVs and replaces all values which
-   have a >50% likelihood of being below the threshold with _0_."
+   have a >50% likelihood of being below the threshold with _0_. The
+   result is a sparse grid (see clj-misc.grid/make-sparse-grid), which
+   only stores the values that remain non-zero."
   [value-type threshold layer]
   (with-message
     (str "Zeroing layer below " threshold "...\n")
-    #(format "  Distinct Layer Values: [Pre] %d [Post] %d"
-             (count (distinct (matrix2seq layer)))
-             (count (distinct (matrix2seq %))))
+    #(if *report-distinct-values*
+       (format "  Distinct Layer Values: [Pre] %d [Post] %d"
+               (count (distinct (matrix2seq layer)))
+               (count (distinct (matrix2seq %))))
+       "  done")
     (let [[_< _0_] (case value-type
                      :numbers  [nb/_< nb/_0_]
                      :varprop  [vp/_< vp/_0_]
                      :randvars [rv/_< rv/_0_])]
-      (map-matrix #(if (_< % threshold) _0_ %) layer))))
+      (make-sparse-grid _0_ (get-rows layer) (get-cols layer)
+                        #(let [x (get-in layer %)] (if (_< x threshold) _0_ x))))))
 
 (defn resample-and-zero
   [value-type scaled-rows scaled-cols layer threshold]
-  (let [[rv-intensive-sampler _0_] (case value-type
-                                     :numbers  [nb/rv-intensive-sampler nb/_0_]
-                                     :varprop  [vp/rv-intensive-sampler vp/_0_]
-                                     :randvars [rv/rv-intensive-sampler rv/_0_])]
-    (cond (nil? layer)     (make-matrix scaled-rows scaled-cols (constantly _0_))
-          (nil? threshold) (resample-matrix scaled-rows scaled-cols rv-intensive-sampler layer)
+  (let [[rv-intensive-sampler block-sampler _0_] (case value-type
+                                                   :numbers  [nb/rv-intensive-sampler numeric-intensive-block-sampler nb/_0_]
+                                                   :varprop  [vp/rv-intensive-sampler nil vp/_0_]
+                                                   :randvars [rv/rv-intensive-sampler nil rv/_0_])]
+    (cond (nil? layer)     (make-sparse-grid _0_ scaled-rows scaled-cols (constantly _0_))
+          (nil? threshold) (resample-matrix scaled-rows scaled-cols rv-intensive-sampler block-sampler layer)
           :otherwise       (zero-layer-below-threshold value-type
                                                        threshold
-                                                       (resample-matrix scaled-rows scaled-cols rv-intensive-sampler layer)))))
+                                                       (resample-matrix scaled-rows scaled-cols rv-intensive-sampler block-sampler layer)))))
 
 (defn preprocess-data-layers
-  "Preprocess data layers (downsampling and zeroing below their thresholds)."
+  "Preprocess data layers (downsampling and zeroing below their
+   thresholds). The layers are processed concurrently, and each one's
+   rows in parallel. If report-distinct-values? is true, the number of
+   distinct values in each layer is printed before and after each
+   step (see clj-misc.matrix-ops/*report-distinct-values*)."
   [{:keys [source-layer sink-layer use-layer flow-layers
            source-threshold sink-threshold use-threshold
-           cell-width cell-height downscaling-factor value-type monitor]
+           cell-width cell-height downscaling-factor value-type layer-cache
+           report-distinct-values? monitor]
     :as params}]
   (monitor-info monitor "preprocessing SPAN input layers")
   (println "Preprocessing the input data layers.")
   (with-error-monitor ^IMonitor monitor
-    (let [[rows cols] ((juxt get-rows get-cols) source-layer)
-          scaled-rows (int (quot rows downscaling-factor))
-          scaled-cols (int (quot cols downscaling-factor))
-          r-and-z     (p resample-and-zero value-type scaled-rows scaled-cols)]
-      (assoc params
-        :orig-rows    rows
-        :orig-cols    cols
-        :rows         scaled-rows
-        :cols         scaled-cols
-        :cell-width   (* cell-width  (/ cols scaled-cols))
-        :cell-height  (* cell-height (/ rows scaled-rows))
-        :source-layer (r-and-z source-layer source-threshold)
-        :sink-layer   (r-and-z sink-layer   sink-threshold)
-        :use-layer    (r-and-z use-layer    use-threshold)
-        :flow-layers  (into {} (for [[name layer] flow-layers] [name (r-and-z layer nil)]))))))
+    (binding [*report-distinct-values* (boolean report-distinct-values?)]
+      (let [[rows cols] ((juxt get-rows get-cols) source-layer)
+            scaled-rows (int (quot rows downscaling-factor))
+            scaled-cols (int (quot cols downscaling-factor))
+            r-and-z     (if layer-cache
+                          (fn [[layer threshold]]
+                            (identity-cached layer-cache layer [value-type rv/*rv-max-states* scaled-rows scaled-cols threshold]
+                                             #(resample-and-zero value-type scaled-rows scaled-cols layer threshold)))
+                          (fn [[layer threshold]]
+                            (resample-and-zero value-type scaled-rows scaled-cols layer threshold)))
+            flow-names  (keys flow-layers)
+            [source-layer sink-layer use-layer & flow-layers]
+            (doall (pmap r-and-z (list* [source-layer source-threshold]
+                                        [sink-layer   sink-threshold]
+                                        [use-layer    use-threshold]
+                                        (for [name flow-names] [(flow-layers name) nil]))))]
+        (assoc params
+          :orig-rows    rows
+          :orig-cols    cols
+          :rows         scaled-rows
+          :cols         scaled-cols
+          :cell-width   (* cell-width  (/ cols scaled-cols))
+          :cell-height  (* cell-height (/ rows scaled-rows))
+          :source-layer source-layer
+          :sink-layer   sink-layer
+          :use-layer    use-layer
+          :flow-layers  (zipmap flow-names flow-layers))))))
 
 (def double>0?         #(and (float?   %) (pos? %)))
 (def nil-or-double>=0? #(or  (nil?     %) (and (float? %) (>= % 0))))
@@ -296,7 +391,9 @@
            source-threshold sink-threshold use-threshold trans-threshold
            cell-width cell-height rv-max-states downscaling-factor
            source-type sink-type use-type benefit-type
-           value-type flow-model animation? result-type monitor]
+           value-type flow-model animation? result-type monitor
+           checkpoint-file checkpoint-interval resume? tile-size tile-dir
+           report-distinct-values? stage-metrics?]
     :as params}]
   (with-error-monitor ^IMonitor monitor
     (assert (every? is-matrix? [source-layer use-layer]))
@@ -322,26 +419,214 @@
                        flow-model))
     (assert (contains? #{:cli-menu :closure-map :java-hashmap} result-type))
     (assert (contains? #{true false nil} animation?))
+    (assert (or (nil? checkpoint-file) (string? checkpoint-file)))
+    (assert (or (nil? checkpoint-interval) (and (number? checkpoint-interval) (>= checkpoint-interval 0))))
+    (assert (contains? #{true false nil} resume?))
+    (assert (or (nil? tile-size) (integer>=1? tile-size)))
+    (assert (or (nil? tile-dir) (string? tile-dir)))
+    (assert (contains? #{true false nil} report-distinct-values?))
+    (assert (contains? #{true false nil} stage-metrics?))
     params))
 
-(defn set-global-vars!
+(def math-namespaces {:numbers  'clj-misc.numbers
+                      :varprop  'clj-misc.varprop
+                      :randvars 'clj-misc.randvars})
+
+(defn make-math-context
+  "Returns the arithmetic context for one SPAN run as a map of
+   {:value-type :rv-max-states :ops}, where :ops maps the names of the
+   public vars in the value-type's namespace (_+_, rv-fn, etc.) to
+   their values. For :numbers, the primitive operators and cached
+   rv-fn from clj-misc.numbers/compiled-ops are used instead. It is
+   passed to the flow models as :math-context."
   [{:keys [value-type rv-max-states]}]
-  (if (and (= value-type :randvars)
-           (integer>=1? rv-max-states))
-    (rv/reset-rv-max-states! rv-max-states)))
+  {:value-type    value-type
+   :rv-max-states (if (and (= value-type :randvars)
+                           (integer>=1? rv-max-states))
+                    rv-max-states
+                    rv/*rv-max-states*)
+   :ops           (if-let [math-ns (math-namespaces value-type)]
+                    (merge (into {} (for [[sym v] (ns-publics math-ns)] [sym @v]))
+                           (if (= value-type :numbers) (nb/compiled-ops))))})
+
+(defn simulate-tile
+  "Runs the simulation over the window of one tile (see
+   clj-misc.matrix-ops/tile-grid) of the input layers in params.
+   Returns a seq of [label f] pairs, one per result layer, where f
+   returns that layer's values over the tile's core cells. The
+   window's top-left cell is passed to the flow model as :tile-origin.
+   The window's input layers are views over the whole ones (see
+   clj-misc.matrix-ops/submatrix), so layers read from memory-mapped
+   rasters are not copied onto the heap for each tile."
+  [{:keys [source-layer sink-layer use-layer flow-layers] :as params} {:keys [core window]}]
+  (let [[ci0 cj0 core-rows core-cols] core
+        [wi0 wj0]                     window
+        core-in-window                [(- ci0 wi0) (- cj0 wj0) core-rows core-cols]]
+    (for [[label f] (some-> params
+                            (assoc :tile-origin  [wi0 wj0]
+                                   :source-layer (submatrix source-layer window)
+                                   :sink-layer   (some-> sink-layer (submatrix window))
+                                   :use-layer    (submatrix use-layer window)
+                                   :flow-layers  (into {} (for [[name layer] flow-layers] [name (submatrix layer window)])))
+                            preprocess-data-layers
+                            create-simulation-inputs
+                            run-simulation
+                            deref-result-layers
+                            generate-results-map)]
+      [label #(submatrix (f) core-in-window)])))
+
+(defn run-span-tiled
+  "Runs a flow model with a tile-halo over its input layers one tile
+   of tile-size x tile-size cells at a time, so that only one tile's
+   simulation state is on the heap at once. Each tile is simulated
+   over a window which extends tile-halo meters beyond it on every
+   side, so that the carriers which cross its edges from neighboring
+   tiles are included in its results, but only the tile's own cells
+   are kept. The result layers are written to float64 raster files in
+   tile-dir (by default, a new temporary directory) and returned as a
+   map of labels to closures which memory-map them (see
+   clj-misc.grid/map-raster-file). Only the numbers value-type without
+   downscaling is supported."
+  [{:keys [source-layer flow-model value-type downscaling-factor
+           cell-width cell-height tile-size tile-dir monitor]
+    :as params}]
+  (monitor-info monitor (str "running SPAN " flow-model " flow model tile by tile"))
+  (with-error-monitor ^IMonitor monitor
+    (let [halo-meters (tile-halo params)]
+      (cond (nil? halo-meters)
+            (throw (Exception. (str "Tiled execution is undefined for flow-model " flow-model
+                                    ", whose carriers have no bounded reach.")))
+
+            (not= value-type :numbers)
+            (throw (Exception. "Tiled execution is only supported for the numbers value-type."))
+
+            (not (== downscaling-factor 1))
+            (throw (Exception. "Tiled execution does not support downscaling. Set downscaling-factor to 1.")))
+      (let [rows  (get-rows source-layer)
+            cols  (get-cols source-layer)
+            halo  (long (Math/ceil (/ halo-meters (min cell-width cell-height))))
+            tiles (vec (tile-grid rows cols tile-size halo))
+            dir   (if tile-dir
+                    (doto (io/file tile-dir) .mkdirs)
+                    (.toFile (Files/createTempDirectory "clj-span-tiles" (make-array FileAttribute 0))))
+            file  (fn [label] (str (io/file dir (str (name (label-to-keyword label)) ".bin"))))]
+        (with-message
+          (str "\nRunning " flow-model " over " (count tiles) " tiles with a halo of " halo " cells...\n")
+          (str "\nAll tiles complete. Results are in " dir ".")
+          (let [labels (reduce (fn [labels [n {:keys [core] :as tile}]]
+                                 (check-interrupt monitor)
+                                 (println (str "\nTile " (inc n) " of " (count tiles) ": " core))
+                                 (doall
+                                  (for [[label core-values] (simulate-tile params tile)]
+                                    (do (if (zero? n) (create-raster-file (file label) rows cols cell-width cell-height))
+                                        (write-raster-window! (file label) (take 2 core) (core-values))
+                                        label))))
+                               nil
+                               (map-indexed vector tiles))]
+            (apply array-map (mapcat (fn [label] [label #(map-raster-file (file label))]) labels))))))))
 
 (defn run-span
-  "Run a flow model and return the results."
+  "Run a flow model and return the results. If params has a
+   :tile-size, the flow model is run tile by tile with run-span-tiled.
+   If :stage-metrics? is true, each stage is measured (see
+   clj-span.thinklab-monitor/measured-step) and the metrics are
+   attached to the results as :stage-metrics metadata."
   [{:keys [result-type value-type source-layer
-           sink-layer use-layer flow-layers]
+           sink-layer use-layer flow-layers tile-size stage-metrics? monitor]
+    :as params}]
+  (monitor-progress-steps monitor (if tile-size 3 6))
+  (let [math-context (make-math-context params)]
+    (with-math-context math-context []
+      (let [metrics            (if stage-metrics? (atom []))
+            step               (stage-step monitor metrics)
+            provide            (p provide-results result-type value-type source-layer sink-layer use-layer flow-layers)
+            simulation-results (if tile-size
+                                 (some->> (assoc params :math-context math-context)
+                                          (step :verify      "verified SPAN parameters"          verify-params-or-throw)
+                                          (step :simulation  "ran SPAN flow model over tiles"    run-span-tiled)
+                                          (step :provide     nil                                 provide))
+                                 (some->> (assoc params :math-context math-context)
+                                          (step :verify      "verified SPAN parameters"          verify-params-or-throw)
+                                          (step :preprocess  "preprocessed SPAN input layers"    preprocess-data-layers)
+                                          (step :inputs      "created SPAN simulation inputs"    create-simulation-inputs)
+                                          (step :simulation  "ran SPAN flow model"               run-simulation)
+                                          (step :deref       "extracted SPAN simulation outputs" deref-result-layers)
+                                          (step :results-map "registered SPAN output analyzers"  generate-results-map)
+                                          (step :provide     nil                                 provide)))]
+        (if metrics
+          (with-stage-metrics @metrics simulation-results)
+          simulation-results)))))
+
+;; These parameters do not affect preprocess-data-layers or
+;; find-simulation-points, so they may vary between runs of a session.
+(def session-override-keys #{:flow-model :trans-threshold :source-type :sink-type :use-type
+                             :benefit-type :animation? :result-type :monitor :stage-metrics?
+                             :checkpoint-file :checkpoint-interval :resume?})
+
+(defn create-span-session
+  "Verifies params and performs the preprocessing steps of run-span
+   (resampling and thresholding the layers and finding the source,
+   sink, and use points) once. The returned session may be passed to
+   run-span-session any number of times, e.g. to run several flow
+   models over the same input layers."
+  [{:keys [source-layer sink-layer use-layer flow-layers monitor]
     :as params}]
-  (set-global-vars! params)
-  (let [simulation-results (some->> params
-                                    verify-params-or-throw
-                                    preprocess-data-layers
-                                    create-simulation-inputs
-                                    run-simulation
-                                    deref-result-layers
-                                    generate-results-map
-                                    (provide-results result-type value-type source-layer sink-layer use-layer flow-layers))]
-    simulation-results))
+  (with-math-context (make-math-context params) []
+    (when-let [preprocessed-params (some-> params
+                                           verify-params-or-throw
+                                           preprocess-data-layers)]
+      (with-error-monitor ^IMonitor monitor
+        (with-message
+          "\nFinding simulation points...\n"
+          #(str "Source points: " (count (:source-points %)) "\n"
+                "Sink points:   " (count (:sink-points   %)) "\n"
+                "Use points:    " (count (:use-points    %)))
+          (assoc (find-simulation-points preprocessed-params)
+            :input-layers {:source-layer source-layer
+                           :sink-layer   sink-layer
+                           :use-layer    use-layer
+                           :flow-layers  flow-layers}))))))
+
+(defn run-span-session
+  "Runs a flow model against a session created by create-span-session
+   and returns the results just as run-span would. The overrides map
+   may only contain keys in session-override-keys."
+  [session overrides]
+  (let [{:keys [result-type value-type input-layers stage-metrics? monitor] :as params} (merge session overrides)
+        {:keys [source-layer sink-layer use-layer flow-layers]} input-layers]
+    (with-error-monitor ^IMonitor monitor
+      (if-let [bad-keys (seq (remove session-override-keys (keys overrides)))]
+        (throw (Exception. (str "These parameters cannot be changed in a SPAN session: " (vec bad-keys))))
+        (do
+          (monitor-progress-steps monitor 5)
+          (let [math-context (make-math-context params)]
+            (with-math-context math-context []
+              (let [metrics            (if stage-metrics? (atom []))
+                    step               (stage-step monitor metrics)
+                    simulation-results (some->> (assoc params :math-context math-context)
+                                                (step :verify      "verified SPAN parameters"          verify-params-or-throw)
+                                                (step :inputs      "created SPAN simulation inputs"    create-simulation-accumulators)
+                                                (step :simulation  "ran SPAN flow model"               run-simulation)
+                                                (step :deref       "extracted SPAN simulation outputs" deref-result-layers)
+                                                (step :results-map "registered SPAN output analyzers"  generate-results-map)
+                                                (step :provide     nil
+                                                      (p provide-results result-type value-type source-layer sink-layer use-layer flow-layers)))]
+                (if metrics
+                  (with-stage-metrics @metrics simulation-results)
+                  simulation-results)))))))))
+
+(defn run-span-batch
+  "Runs run-span once per scenario, where each scenario is a map of
+   parameters to merge into base-params. Layers which are identical (by
+   identity) between scenarios are only preprocessed once. At most
+   max-concurrency scenarios (default: the number of processors) run
+   at once, and the results are returned as a lazy seq in scenario
+   order. Each run has its own math context (see make-math-context),
+   so scenarios may use different :value-types and :rv-max-states."
+  ([base-params scenarios]
+     (run-span-batch base-params scenarios (.availableProcessors (Runtime/getRuntime))))
+  ([base-params scenarios max-concurrency]
+     (let [layer-cache (make-identity-cache)]
+       (bounded-pmap max-concurrency
+                     #(run-span (assoc (merge base-params %) :layer-cache layer-cache))
+                     scenarios))))
@@ -19,20 +19,39 @@
 ;;;
 ;;; This namespace defines the static runSpan {java.util.HashMap ->
 ;;; java.util.HashMap} method, which is the main entry point into the
-;;; SPAN system from external Java programs.
+;;; SPAN system from external Java programs. A second runSpan
+;;; {java.util.HashMap, clj_span.IResultSink -> void} method streams
+;;; the result layers to the given sink instead of returning them. The
+;;; two runSpanAsync methods take the same arguments but run on an
+;;; executor and return a java.util.concurrent.Future. Finally,
+;;; createSession and runSession allow several flow models to be run
+;;; over the same input layers while only preprocessing them once, and
+;;; runSpanBatch runs many scenarios in parallel which share layers.
 
 (ns clj-span.java-span-bridge
-  (:use [clj-misc.utils            :only (p & with-message mapmap-generic mapmap-java)]
-        [clj-misc.matrix-ops       :only (make-matrix is-matrix?)]
-        [clj-span.thinklab-monitor :only (monitor-info with-error-monitor)]
+  (:use [clj-misc.utils            :only (p & with-message mapmap-generic mapmap-java remove-nil-val-entries
+                                          bounded-pmap make-identity-cache identity-cached evict-identity-cached)]
+        [clj-misc.matrix-ops       :only (make-matrix is-matrix? map-matrix get-rows get-cols)]
+        [clj-misc.grid             :only (wrap-double-array map-raster-file)]
+        [clj-span.thinklab-monitor :only (monitor-info with-error-monitor cancellable-monitor stage-step)]
         clojure.core.matrix
         clojure.core.matrix.operators)
   (:require [clj-span.core :as core]
+            [clj-span.result-sink]
             (clj-misc [numbers :as nb] [varprop :as vp] [randvars :as rv]))
-  (:import (org.integratedmodelling.thinklab.api.listeners IMonitor))
+  (:import (org.integratedmodelling.thinklab.api.listeners IMonitor)
+           (clj_span IResultSink)
+           (java.util.concurrent Callable Executor FutureTask))
   (:gen-class
    :main false
-   :methods [^{:static true} [runSpan [java.util.HashMap] java.util.HashMap]]))
+   :methods [^{:static true} [runSpan [java.util.HashMap] java.util.HashMap]
+             ^{:static true} [runSpan [java.util.HashMap clj_span.IResultSink] void]
+             ^{:static true} [runSpanAsync [java.util.HashMap] java.util.concurrent.Future]
+             ^{:static true} [runSpanAsync [java.util.HashMap clj_span.IResultSink] java.util.concurrent.Future]
+             ^{:static true} [createSession [java.util.HashMap] Object]
+             ^{:static true} [runSession [Object java.util.HashMap] java.util.HashMap]
+             ^{:static true} [runSession [Object java.util.HashMap clj_span.IResultSink] void]
+             ^{:static true} [runSpanBatch [java.util.HashMap java.util.List int] java.util.Iterator]]))
 
 (set-current-implementation :vectorz)
 
@@ -48,101 +67,491 @@
   [rows cols y x]
   (+ (* (- rows y 1) cols) x))
 
+(defn unpack-flat-probs-layer
+  "Unpacks a Bayesian datasource whose probs are stored in one flat
+   double[] of rows * cols * (count bounds - 1) values (one run of
+   probabilities per offset). Cells whose first probability is NaN are
+   treated as having no data. Numbers layers are reduced to a double[]
+   of means and wrapped as a grid."
+  [value-type rows cols ^doubles bounds ^doubles probs]
+  (let [num-states (dec (alength bounds))
+        num-cells  (* rows cols)]
+    (if (not= (alength probs) (* num-cells num-states))
+      (throw (Exception. (str "Flat probs array must have rows * cols * " num-states " elements."))))
+    (if (= value-type :numbers)
+      (let [means (double-array num-cells)]
+        (dotimes [offset num-cells]
+          (let [start (* offset num-states)]
+            (if-not (Double/isNaN (aget probs start))
+              (aset means offset (nb/create-from-flat-ranges bounds probs start)))))
+        (wrap-double-array rows cols true means))
+      (let [[create-fn _0_] (case value-type
+                              :randvars [rv/create-from-flat-ranges rv/_0_]
+                              :varprop  [vp/create-from-flat-ranges vp/_0_])]
+        (make-matrix rows cols
+                     (fn [[y x]]
+                       (let [start (* (yx-to-offset rows cols y x) num-states)]
+                         (if (Double/isNaN (aget probs start))
+                           _0_
+                           (create-fn bounds probs start)))))))))
+
 (defn unpack-layer
-  [value-type rows cols layer]
+  [value-type zero-copy? rows cols layer]
   (when layer
-    (if (instance? java.util.HashMap layer)
-      (with-message "Unpacking Bayesian datasource..." "done."
-        (let [bounds                (get layer "bounds") ; double[]
-              probs-layer           (get layer "probs")  ; double[][]
-              unbounded-from-below? (== Double/NEGATIVE_INFINITY (first bounds))
-              unbounded-from-above? (== Double/POSITIVE_INFINITY (last  bounds))
-              unpack-fn             (case value-type
-                                      :randvars #(if % (rv/create-from-ranges bounds %) rv/_0_)
-                                      :varprop  #(if % (vp/create-from-ranges bounds %) vp/_0_)
-                                      :numbers  #(if % (nb/create-from-ranges bounds %) nb/_0_))]
-          (if (or unbounded-from-below? unbounded-from-above?)
-            (throw (Exception. "All undiscretized bounds must be closed above and below."))
-            (make-matrix rows cols
-                         (fn [[y x]]
-                           (->> (yx-to-offset rows cols y x)
-                                (aget probs-layer)
-                                unpack-fn))))))
-      (with-message "Unpacking deterministic datasource..." "done."
-        (let [unpack-fn (case value-type
-                          :randvars #(rv/make-randvar :discrete 1 [%])
-                          :varprop  #(vp/fuzzy-number % 0.0)
-                          :numbers  identity)]
-          (make-matrix rows cols
-                       (fn [[y x]]
-                         (->> (yx-to-offset rows cols y x)
-                              (aget layer)
-                              NaN-to-zero
-                              unpack-fn))))))))
+    (cond
+     (and (instance? java.util.HashMap layer)
+          (instance? (Class/forName "[D") (get layer "probs")))
+     (with-message "Unpacking flat Bayesian datasource..." "done."
+       (let [bounds                (double-array (get layer "bounds"))
+             unbounded-from-below? (== Double/NEGATIVE_INFINITY (first bounds))
+             unbounded-from-above? (== Double/POSITIVE_INFINITY (last  bounds))]
+         (if (or unbounded-from-below? unbounded-from-above?)
+           (throw (Exception. "All undiscretized bounds must be closed above and below."))
+           (unpack-flat-probs-layer value-type rows cols bounds (get layer "probs")))))
+
+     (instance? java.util.HashMap layer)
+     (with-message "Unpacking Bayesian datasource..." "done."
+       (let [bounds                (get layer "bounds") ; double[]
+             probs-layer           (get layer "probs")  ; double[][]
+             unbounded-from-below? (== Double/NEGATIVE_INFINITY (first bounds))
+             unbounded-from-above? (== Double/POSITIVE_INFINITY (last  bounds))
+             unpack-fn             (case value-type
+                                     :randvars #(if % (rv/create-from-ranges bounds %) rv/_0_)
+                                     :varprop  #(if % (vp/create-from-ranges bounds %) vp/_0_)
+                                     :numbers  #(if % (nb/create-from-ranges bounds %) nb/_0_))]
+         (if (or unbounded-from-below? unbounded-from-above?)
+           (throw (Exception. "All undiscretized bounds must be closed above and below."))
+           (make-matrix rows cols
+                        (fn [[y x]]
+                          (->> (yx-to-offset rows cols y x)
+                               (aget probs-layer)
+                               unpack-fn))))))
+
+     (string? layer)
+     (with-message (str "Mapping raster datasource " layer "...") "done."
+       (let [matrix (map-raster-file layer)]
+         (if (not= [rows cols] [(get-rows matrix) (get-cols matrix)])
+           (throw (Exception. (str "Raster " layer " must have " rows " rows and " cols " cols."))))
+         (case value-type
+           :randvars (map-matrix #(rv/make-randvar :discrete 1 [%]) matrix)
+           :varprop  (map-matrix #(vp/fuzzy-number % 0.0) matrix)
+           :numbers  matrix)))
+
+     (and zero-copy? (= value-type :numbers))
+     (with-message "Wrapping deterministic datasource..." "done."
+       (wrap-double-array rows cols true layer))
+
+     :otherwise
+     (with-message "Unpacking deterministic datasource..." "done."
+       (let [unpack-fn (case value-type
+                         :randvars #(rv/make-randvar :discrete 1 [%])
+                         :varprop  #(vp/fuzzy-number % 0.0)
+                         :numbers  identity)]
+         (make-matrix rows cols
+                      (fn [[y x]]
+                        (->> (yx-to-offset rows cols y x)
+                             (aget layer)
+                             NaN-to-zero
+                             unpack-fn))))))))
 
 (defn unpack-layer-map
-  [value-type rows cols layer-map]
-  (mapmap-generic identity (p unpack-layer value-type rows cols) layer-map))
+  [value-type zero-copy? rows cols layer-map]
+  (mapmap-generic identity (p unpack-layer value-type zero-copy? rows cols) layer-map))
 
 (defn funky-matrix2seq
-  [rows cols matrix]
-  (let [lookup-fn (if (is-matrix? matrix)
-                    #(get-in matrix (offset-to-yx rows cols %))
-                    #(apply mget matrix (offset-to-yx rows cols %)))]
-    (map lookup-fn (range (* rows cols)))))
+  ([rows cols matrix]
+     (funky-matrix2seq rows cols matrix 0 rows))
+  ([rows cols matrix first-row num-rows]
+     (let [lookup-fn (if (is-matrix? matrix)
+                       #(get-in matrix (offset-to-yx rows cols %))
+                       #(apply mget matrix (offset-to-yx rows cols %)))]
+       (map lookup-fn (range (* first-row cols) (* (+ first-row num-rows) cols))))))
 
-(defn pack-layer
-  [value-type rows cols closure]
-  (let [result-seq (funky-matrix2seq rows cols (closure))]
+(defn pack-numbers-layer
+  "Writes the values of a deterministic result matrix directly into a
+   primitive double[] using the same offset projection as the input
+   layers. No intermediate seq or boxed array is created. If first-row
+   and num-rows are given, only that block of rows (in offset order)
+   is written."
+  ([rows cols matrix]
+     (pack-numbers-layer rows cols matrix 0 rows))
+  ([rows cols matrix first-row num-rows]
+     (let [rows      (int rows)
+           cols      (int cols)
+           first-row (int first-row)
+           num-rows  (int num-rows)
+           result    (double-array (* num-rows cols))]
+       (if (is-matrix? matrix)
+         (dotimes [r num-rows]
+           (let [row    (nth matrix (- rows (+ first-row r) 1))
+                 offset (* r cols)]
+             (dotimes [x cols]
+               (aset result (+ offset x) (double (nth row x))))))
+         (dotimes [r num-rows]
+           (let [y      (- rows (+ first-row r) 1)
+                 offset (* r cols)]
+             (dotimes [x cols]
+               (aset result (+ offset x) (double (mget matrix y x)))))))
+       result)))
+
+(defn pack-varprop-layer
+  "Writes the means and variances of a varprop result matrix into two
+   parallel double[]s (returned in a HashMap under \"mean\" and
+   \"var\") using the same offset projection as the input layers."
+  [rows cols matrix first-row num-rows]
+  (let [rows      (int rows)
+        cols      (int cols)
+        first-row (int first-row)
+        num-rows  (int num-rows)
+        means     (double-array (* num-rows cols))
+        vars      (double-array (* num-rows cols))]
+    (dotimes [r num-rows]
+      (let [row    (nth matrix (- rows (+ first-row r) 1))
+            offset (* r cols)]
+        (dotimes [x cols]
+          (let [{:keys [mean var]} (nth row x)]
+            (aset means (+ offset x) (double mean))
+            (aset vars  (+ offset x) (double var))))))
+    (doto (java.util.HashMap.)
+      (.put "mean" means)
+      (.put "var"  vars))))
+
+(defn pack-randvars-layer
+  "Writes the states and probabilities of a randvars result matrix in
+   compressed sparse row form, returned in a HashMap with keys
+   \"offsets\" (int[] of length cells + 1), \"states\", and \"probs\"
+   (parallel double[]s). The states of cell i (in the same offset
+   projection as the input layers) are stored in ascending order at
+   indices offsets[i] through offsets[i+1] - 1."
+  [rows cols matrix first-row num-rows]
+  (let [rows      (int rows)
+        cols      (int cols)
+        first-row (int first-row)
+        num-rows  (int num-rows)
+        num-cells (* num-rows cols)
+        cells     (object-array num-cells)
+        offsets   (int-array (inc num-cells))]
+    (dotimes [r num-rows]
+      (let [row    (nth matrix (- rows (+ first-row r) 1))
+            offset (* r cols)]
+        (dotimes [x cols]
+          (let [rv (nth row x)]
+            (aset cells (+ offset x) rv)
+            (aset offsets (inc (+ offset x)) (int (+ (aget offsets (+ offset x)) (count rv))))))))
+    (let [states (double-array (aget offsets num-cells))
+          probs  (double-array (aget offsets num-cells))]
+      (dotimes [i num-cells]
+        (loop [j       (aget offsets i)
+               entries (sort-by key (aget cells i))]
+          (when-let [[state prob] (first entries)]
+            (aset states j (double state))
+            (aset probs  j (double prob))
+            (recur (inc j) (rest entries)))))
+      (doto (java.util.HashMap.)
+        (.put "offsets" offsets)
+        (.put "states"  states)
+        (.put "probs"   probs)))))
+
+(defn pack-rows
+  [value-type primitive-results? rows cols matrix first-row num-rows]
+  (if primitive-results?
     (case value-type
-      "numbers"  (into-array result-seq)
-      "varprop"  (into-array (map (p mapmap-java name double) result-seq))
-      "randvars" (into-array (map (p mapmap-java double double) result-seq)))))
+      "numbers"  (pack-numbers-layer  rows cols matrix first-row num-rows)
+      "varprop"  (pack-varprop-layer  rows cols matrix first-row num-rows)
+      "randvars" (pack-randvars-layer rows cols matrix first-row num-rows))
+    (let [result-seq (funky-matrix2seq rows cols matrix first-row num-rows)]
+      (case value-type
+        "numbers"  (into-array result-seq)
+        "varprop"  (into-array (map (p mapmap-java name double) result-seq))
+        "randvars" (into-array (map (p mapmap-java double double) result-seq))))))
+
+(defn pack-layer
+  [value-type primitive-results? rows cols closure]
+  (pack-rows value-type primitive-results? rows cols (closure) 0 rows))
+
+(defn stage-metrics-to-java
+  "Converts the :stage-metrics from core/run-span into a Java List of
+   HashMaps with keys \"stage\", \"wall-ms\", \"cpu-ms\",
+   \"allocated-bytes\", and \"peak-heap-bytes\"."
+  [metrics]
+  (java.util.ArrayList.
+   ^java.util.Collection (map #(mapmap-java name identity (update-in % [:stage] name)) metrics)))
 
 (defn postprocess-results
-  [value-type rows cols result-layers monitor result-map]
+  "Packs the requested result layers into a Java HashMap. If
+   stage-metrics? is true, the map also holds the per-stage metrics
+   (see stage-metrics-to-java) under \"stage-metrics\"."
+  [value-type primitive-results? stage-metrics? rows cols result-layers monitor result-map]
   (when result-map ;; if result-map is nil, then core/run-span threw a
                    ;; thinklab-monitor error somewhere
     (monitor-info monitor "computing SPAN result layers")
     (with-error-monitor ^IMonitor monitor
-      (mapmap-java
-       (fn [label] (println (str "\nComputing " label "...")) label)
-       (p pack-layer value-type rows cols)
-       (select-keys result-map result-layers)))))
+      (let [metrics (if stage-metrics? (atom (:stage-metrics (meta result-map) [])))
+            results ((stage-step monitor metrics) :postprocess nil
+                     (p mapmap-java
+                        (fn [label] (println (str "\nComputing " label "...")) label)
+                        (p pack-layer value-type primitive-results? rows cols))
+                     (select-keys result-map result-layers))]
+        (if metrics
+          (doto ^java.util.HashMap results
+            (.put "stage-metrics" (stage-metrics-to-java @metrics)))
+          results)))))
+
+(defn send-result-layers
+  "Like postprocess-results, but sends the requested result layers to
+   result-sink one at a time instead of returning them. Each layer is
+   computed whole (its closure aggregates every carrier, so it cannot
+   be computed a block at a time), and then it is packed and sent in
+   blocks of block-rows rows. Thus, one complete result matrix and one
+   packed block are held at once, rather than every requested layer
+   and all of their packed arrays. If stage-metrics? is true, the
+   metrics of this step are only reported to monitor. Returns nil."
+  [value-type primitive-results? stage-metrics? rows cols block-rows result-layers monitor
+   ^IResultSink result-sink result-map]
+  (when result-map ;; if result-map is nil, then core/run-span threw a
+                   ;; thinklab-monitor error somewhere
+    (monitor-info monitor "streaming SPAN result layers")
+    (with-error-monitor ^IMonitor monitor
+      (let [rows       (int rows)
+            cols       (int cols)
+            block-rows (int (max 1 (or block-rows rows)))]
+        ((stage-step monitor (if stage-metrics? (atom []))) :postprocess nil
+         (fn [result-map]
+           (doseq [^String label result-layers
+                   :let [closure (get result-map label)]
+                   :when closure]
+             (println (str "\nComputing " label "..."))
+             (let [matrix (closure)]
+               (.beginLayer result-sink label rows cols)
+               (doseq [first-row (range 0 rows block-rows)]
+                 (let [num-rows (min block-rows (- rows first-row))]
+                   (.writeRows result-sink label (int first-row) (int num-rows)
+                               (pack-rows value-type primitive-results? rows cols matrix first-row num-rows))))
+               (.endLayer result-sink label))))
+         result-map)
+        nil))))
+
+(defn unpack-span-params
+  "Unpacks the Java input layers and returns the parameter map
+   expected by clj-span.core/run-span (or nil if unpacking failed). If
+   an unpack-cache (see clj-misc.utils/make-identity-cache) is given,
+   each distinct layer array is only unpacked once for each
+   combination of the parameters which unpack-layer reads from it."
+  ([params]
+     (unpack-span-params nil params))
+  ([unpack-cache
+    {:strs [source-layer sink-layer use-layer flow-layers rows cols
+            source-threshold sink-threshold use-threshold trans-threshold
+            cell-width cell-height rv-max-states downscaling-factor
+            source-type sink-type use-type benefit-type
+            value-type flow-model animation? zero-copy? stage-metrics? monitor
+            checkpoint-file checkpoint-interval resume? tile-size tile-dir]}]
+     (monitor-info monitor "extracting SPAN input layers")
+     (if-let [[source-layer sink-layer use-layer flow-layers]
+              (with-error-monitor ^IMonitor monitor
+                (let [unpack (if unpack-cache
+                               (fn [layer]
+                                 (if layer
+                                   (identity-cached unpack-cache layer [(keyword value-type) (boolean zero-copy?) rows cols]
+                                                    #(unpack-layer (keyword value-type) zero-copy? rows cols layer))))
+                               (p unpack-layer (keyword value-type) zero-copy? rows cols))]
+                  [(unpack source-layer)
+                   (unpack sink-layer)
+                   (unpack use-layer)
+                   (mapmap-generic identity unpack flow-layers)]))]
+       {:source-layer        source-layer
+        :sink-layer          sink-layer
+        :use-layer           use-layer
+        :flow-layers         flow-layers
+        :source-threshold    source-threshold
+        :sink-threshold      sink-threshold
+        :use-threshold       use-threshold
+        :trans-threshold     trans-threshold
+        :cell-width          cell-width
+        :cell-height         cell-height
+        :rv-max-states       rv-max-states
+        :downscaling-factor  downscaling-factor
+        :source-type         (keyword source-type)
+        :sink-type           (keyword sink-type)
+        :use-type            (keyword use-type)
+        :benefit-type        (keyword benefit-type)
+        :value-type          (keyword value-type)
+        :flow-model          flow-model
+        :animation?          animation?
+        :result-type         :java-hashmap
+        :stage-metrics?      stage-metrics?
+        :monitor             monitor
+        :checkpoint-file     checkpoint-file
+        :checkpoint-interval checkpoint-interval
+        :resume?             resume?
+        :tile-size           tile-size
+        :tile-dir            tile-dir})))
+
+(defn run-bridged-span
+  "Unpacks the Java input layers, runs the SPAN simulation, and passes
+   the resulting map of labels to closures to postprocess-fn. The
+   optional caches map may hold an :unpack-cache and a :layer-cache,
+   which are shared between the runs of a batch."
+  ([params postprocess-fn]
+     (run-bridged-span nil params postprocess-fn))
+  ([{:keys [unpack-cache layer-cache]} {:strs [monitor] :as params} postprocess-fn]
+     (if-let [span-params (unpack-span-params unpack-cache params)]
+       (postprocess-fn
+        (with-error-monitor ^IMonitor monitor
+          (core/run-span (if layer-cache
+                           (assoc span-params :layer-cache layer-cache)
+                           span-params)))))))
 
 (defn -runSpan
-  [{:strs [source-layer sink-layer use-layer flow-layers rows cols
-           source-threshold sink-threshold use-threshold trans-threshold
-           cell-width cell-height rv-max-states downscaling-factor
-           source-type sink-type use-type benefit-type
-           value-type flow-model animation? result-layers monitor]}]
-  (monitor-info monitor "extracting SPAN input layers")
-  (if-let [[source-layer sink-layer use-layer flow-layers]
-           (with-error-monitor ^IMonitor monitor
-             [(unpack-layer (keyword value-type) rows cols source-layer)
-              (unpack-layer (keyword value-type) rows cols sink-layer)
-              (unpack-layer (keyword value-type) rows cols use-layer)
-              (unpack-layer-map (keyword value-type) rows cols flow-layers)])]
-    (postprocess-results value-type rows cols result-layers monitor
-                         (with-error-monitor ^IMonitor monitor
-                           (core/run-span {:source-layer       source-layer
-                                           :sink-layer         sink-layer
-                                           :use-layer          use-layer
-                                           :flow-layers        flow-layers
-                                           :source-threshold   source-threshold
-                                           :sink-threshold     sink-threshold
-                                           :use-threshold      use-threshold
-                                           :trans-threshold    trans-threshold
-                                           :cell-width         cell-width
-                                           :cell-height        cell-height
-                                           :rv-max-states      rv-max-states
-                                           :downscaling-factor downscaling-factor
-                                           :source-type        (keyword source-type)
-                                           :sink-type          (keyword sink-type)
-                                           :use-type           (keyword use-type)
-                                           :benefit-type       (keyword benefit-type)
-                                           :value-type         (keyword value-type)
-                                           :flow-model         flow-model
-                                           :animation?         animation?
-                                           :result-type        :java-hashmap
-                                           :monitor            monitor})))))
+  ([{:strs [rows cols value-type result-layers primitive-results? stage-metrics? monitor] :as params}]
+     (run-bridged-span params
+                       (p postprocess-results value-type primitive-results? stage-metrics? rows cols result-layers monitor)))
+  ([{:strs [rows cols value-type result-layers primitive-results? stage-metrics? result-block-rows monitor] :as params}
+    result-sink]
+     (run-bridged-span params
+                       (p send-result-layers value-type primitive-results? stage-metrics? rows cols result-block-rows
+                          result-layers monitor result-sink))
+     nil))
+
+(defn -createSession
+  [{:strs [rows cols value-type monitor] :as params}]
+  (if-let [span-params (unpack-span-params params)]
+    (with-error-monitor ^IMonitor monitor
+      (if-let [session (core/create-span-session span-params)]
+        {:session    session
+         :rows       rows
+         :cols       cols
+         :value-type value-type}))))
+
+(defn unpack-session-overrides
+  [{:strs [flow-model trans-threshold source-type sink-type use-type
+           benefit-type animation? stage-metrics? monitor
+           checkpoint-file checkpoint-interval resume?]}]
+  (remove-nil-val-entries
+   {:flow-model          flow-model
+    :trans-threshold     trans-threshold
+    :source-type         (some-> source-type keyword)
+    :sink-type           (some-> sink-type keyword)
+    :use-type            (some-> use-type keyword)
+    :benefit-type        (some-> benefit-type keyword)
+    :animation?          animation?
+    :stage-metrics?      stage-metrics?
+    :monitor             monitor
+    :checkpoint-file     checkpoint-file
+    :checkpoint-interval checkpoint-interval
+    :resume?             resume?}))
+
+(def session-override-keys #{"flow-model" "trans-threshold" "source-type" "sink-type" "use-type"
+                             "benefit-type" "animation?" "monitor" "result-layers"
+                             "primitive-results?" "stage-metrics?" "result-block-rows"
+                             "checkpoint-file" "checkpoint-interval" "resume?"})
+
+(defn run-bridged-session
+  [{:keys [session]} overrides postprocess-fn]
+  (let [monitor (or (get overrides "monitor") (:monitor session))]
+    (postprocess-fn
+     (with-error-monitor ^IMonitor monitor
+       (if-let [bad-keys (seq (remove session-override-keys (keys overrides)))]
+         (throw (Exception. (str "These parameters cannot be changed in a SPAN session: " (vec bad-keys))))
+         (core/run-span-session session (unpack-session-overrides overrides)))))))
+
+(defn -runSession
+  ([{:keys [rows cols value-type session] :as bridge-session}
+    {:strs [result-layers primitive-results? stage-metrics? monitor] :as overrides}]
+     (run-bridged-session bridge-session
+                          overrides
+                          (p postprocess-results value-type primitive-results? stage-metrics? rows cols result-layers
+                             (or monitor (:monitor session)))))
+  ([{:keys [rows cols value-type session] :as bridge-session}
+    {:strs [result-layers primitive-results? stage-metrics? result-block-rows monitor] :as overrides}
+    result-sink]
+     (run-bridged-session bridge-session
+                          overrides
+                          (p send-result-layers value-type primitive-results? stage-metrics? rows cols result-block-rows
+                             result-layers (or monitor (:monitor session)) result-sink))
+     nil))
+
+(defn submit-span
+  "Runs (run-fn params) on the executor stored under \"executor\" in
+   params (or on Clojure's send-off pool if none is given) and returns
+   a FutureTask for its result. The task's monitor is replaced by one
+   which also reports itself as stopped once the task is cancelled, so
+   the flow models stop at their next chunk boundary. If no monitor was
+   given, errors are rethrown from the task and will surface from
+   Future.get() as an ExecutionException."
+  [^java.util.HashMap params run-fn]
+  (let [executor    (or (get params "executor") clojure.lang.Agent/soloExecutor)
+        task        (promise)
+        first-error (atom nil)
+        monitor     (cancellable-monitor (get params "monitor")
+                                         #(.isCancelled ^FutureTask @task)
+                                         first-error)
+        params      (doto (java.util.HashMap. params)
+                      (.put "monitor" monitor))]
+    (deliver task (FutureTask. ^Callable (fn []
+                                           (let [result (run-fn params)]
+                                             (if-let [e @first-error]
+                                               (throw (if (instance? Exception e) e (Exception. (str e))))
+                                               result)))))
+    (.execute ^Executor executor @task)
+    @task))
+
+(defn -runSpanAsync
+  ([params]
+     (submit-span params -runSpan))
+  ([params result-sink]
+     (submit-span params #(-runSpan % result-sink))))
+
+(defn- scenario-layers
+  "Returns the input layer arrays named in a batch scenario's params."
+  [{:strs [source-layer sink-layer use-layer flow-layers]}]
+  (remove nil? (list* source-layer sink-layer use-layer (vals flow-layers))))
+
+(defn- release-layer!
+  "Drops the unpacked copies of layer from the batch caches, along
+   with the preprocessed layers made from them."
+  [{:keys [unpack-cache layer-cache]} layer]
+  (doseq [unpacked (vals (evict-identity-cached unpack-cache layer))
+          :when    (realized? unpacked)
+          :let     [unpacked (try @unpacked (catch Exception _ nil))]
+          :when    unpacked]
+    (evict-identity-cached layer-cache unpacked)))
+
+(defn -runSpanBatch
+  "Runs each scenario (merged into base-params) as in runSpan, with at
+   most max-concurrency running at once, and returns an Iterator over
+   their results in scenario order. As in clj-span.core/run-span-batch,
+   scenarios may use different value-types and rv-max-states. Each
+   input array is unpacked and preprocessed once per distinct set of
+   parameters, and dropped from the caches as soon as the last
+   scenario using it has finished."
+  [^java.util.HashMap base-params scenarios max-concurrency]
+  (let [caches          {:unpack-cache (make-identity-cache)
+                         :layer-cache  (make-identity-cache)}
+        scenario-params (mapv #(doto (java.util.HashMap. base-params)
+                                 (.putAll ^java.util.Map %))
+                              scenarios)
+        layer-uses      (java.util.IdentityHashMap.)
+        release-uses!   (fn [params]
+                          (doseq [layer (scenario-layers params)]
+                            (if (zero? (locking layer-uses
+                                         (let [n (dec (long (.get layer-uses layer)))]
+                                           (if (zero? n)
+                                             (.remove layer-uses layer)
+                                             (.put layer-uses layer n))
+                                           n)))
+                              (release-layer! caches layer))))]
+    (doseq [params scenario-params
+            layer  (scenario-layers params)]
+      (.put layer-uses layer (inc (long (or (.get layer-uses layer) 0)))))
+    (.iterator ^Iterable (bounded-pmap max-concurrency
+                                       (fn [{:strs [rows cols value-type result-layers primitive-results? stage-metrics? monitor]
+                                             :as params}]
+                                         (try
+                                           (run-bridged-span caches
+                                                             params
+                                                             (p postprocess-results value-type primitive-results? stage-metrics?
+                                                                rows cols result-layers monitor))
+                                           (finally
+                                             (release-uses! params))))
+                                       scenario-params))))
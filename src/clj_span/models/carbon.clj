@@ -82,9 +82,10 @@
 ;;;   within some epsilon of one another.
 
 (ns clj-span.models.carbon
-  (:use [clj-misc.utils :only (p sum def- with-progress-bar-cool)]))
+  (:use [clj-misc.utils            :only (p sum def- with-progress-bar-cool)]
+        [clj-span.thinklab-monitor :only (interruptible)]))
 
-(refer 'clj-span.core :only '(distribute-flow! service-carrier))
+(refer 'clj-span.core :only '(distribute-flow! service-carrier with-math-context))
 
 (def ^:dynamic *_)
 (def ^:dynamic _d)
@@ -200,9 +201,9 @@
   "Now we compress these samples into a single sequence of
    carrier-caches which summarize the sample results using discrete
    probability distributions."
-  [source-points sink-points use-points world-samples]
+  [monitor source-points sink-points use-points world-samples]
   (println "Combining sample worlds...")
-  (reduce combine-worlds
+  (reduce (interruptible monitor combine-worlds)
           (for [_ use-points]
             (for [_ source-points]
               [{} {} (take (count sink-points) (repeat {}))]))
@@ -235,35 +236,29 @@
 (defmethod distribute-flow! "CO2Removed"
   [{:keys [source-layer sink-layer use-layer
            source-points sink-points use-points
-           cell-width cell-height value-type cache-layer]}]
+           cell-width cell-height math-context cache-layer monitor]}]
   "The amount of carbon sequestration produced is distributed among
    the consumers (carbon emitters) according to their relative use
    values after being initially reduced by the sink values due to
    landscape emissions."
-  (let [prob-ns (case value-type
-                  :numbers  'clj-misc.numbers
-                  :varprop  'clj-misc.varprop
-                  :randvars 'clj-misc.randvars)]
-    (binding [*_                  (var-get (ns-resolve prob-ns '*_))
-              _d                  (var-get (ns-resolve prob-ns '_d))
-              draw                (var-get (ns-resolve prob-ns 'draw))
-              create-from-states  (var-get (ns-resolve prob-ns 'create-from-states))]
-      (let [ha-per-cell (* cell-width cell-height (Math/pow 10.0 -4.0))
-            use-caches  (cacheify-world ha-per-cell
-                                        source-points
-                                        sink-points
-                                        use-points
-                                        (combine-sample-worlds source-points
-                                                               sink-points
-                                                               use-points
-                                                               (draw-sample-worlds source-layer
-                                                                                   sink-layer
-                                                                                   use-layer
-                                                                                   source-points
-                                                                                   sink-points
-                                                                                   use-points
-                                                                                   ha-per-cell)))]
-        ;; Update the cache-layer.
-        (dosync
-         (doseq [[id cache] use-caches]
-           (alter (get-in cache-layer id) (constantly cache))))))))
+  (with-math-context math-context [*_ _d draw create-from-states]
+    (let [ha-per-cell (* cell-width cell-height (Math/pow 10.0 -4.0))
+          use-caches  (cacheify-world ha-per-cell
+                                      source-points
+                                      sink-points
+                                      use-points
+                                      (combine-sample-worlds monitor
+                                                             source-points
+                                                             sink-points
+                                                             use-points
+                                                             (draw-sample-worlds source-layer
+                                                                                 sink-layer
+                                                                                 use-layer
+                                                                                 source-points
+                                                                                 sink-points
+                                                                                 use-points
+                                                                                 ha-per-cell)))]
+      ;; Update the cache-layer.
+      (dosync
+       (doseq [[id cache] use-caches]
+         (alter (get-in cache-layer id) (constantly cache)))))))
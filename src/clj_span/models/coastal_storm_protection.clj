@@ -64,11 +64,14 @@
                                     get-bearing
                                     get-neighbors
                                     dist-to-steps
-                                    filter-matrix-for-coords
+                                    filter-matrix-for-cell-set
                                     find-point-at-dist-in-m
-                                    find-line-between)]))
+                                    find-line-between
+                                    reduce-line-between)]
+        [clj-misc.grid       :only (accumulate-all-in!)]
+        [clj-span.thinklab-monitor :only (interruptible)]))
 
-(refer 'clj-span.core :only '(distribute-flow! service-carrier with-typed-math-syms))
+(refer 'clj-span.core :only '(distribute-flow! service-carrier with-math-context))
 
 (def ^:dynamic _0_)
 (def ^:dynamic _+_)
@@ -142,13 +145,19 @@
                                                          storm-surge-reach
                                                          cell-width
                                                          cell-height)
-        left-storm-surge-cells  (filter (p in-bounds? rows cols)
-                                        (find-line-between storm-surge-left-edge storm-centerpoint))
-        right-storm-surge-cells (filter (p in-bounds? rows cols)
-                                        (rest (find-line-between storm-centerpoint storm-surge-right-edge)))]
+        [ci cj]                 storm-centerpoint
+        ;; Only the in-bounds cells of each line are built. The
+        ;; centerpoint is on the left side.
+        add-surge-cell          (fn [side]
+                                  (fn [cells ^long i ^long j]
+                                    (if (and (< -1 i rows)
+                                             (< -1 j cols)
+                                             (not (and (= side :right) (== i ci) (== j cj))))
+                                      (conj cells [[i j] side [(- i ci) (- j cj)]])
+                                      cells)))]
     (concat
-     (map (fn [id] [id :left  (subtract-ids id storm-centerpoint)]) left-storm-surge-cells)
-     (map (fn [id] [id :right (subtract-ids id storm-centerpoint)]) right-storm-surge-cells))))
+     (reduce-line-between (add-surge-cell :left)  [] storm-surge-left-edge storm-centerpoint)
+     (reduce-line-between (add-surge-cell :right) [] storm-centerpoint storm-surge-right-edge))))
 
 (def ^:dynamic *storm-surge-width* 100000.0) ;; in meters
 (def ^:dynamic *storm-surge-depth* 5000.0)   ;; in meters
@@ -273,9 +282,8 @@
                                                :possible-weight new-possible-weight
                                                :actual-weight   new-actual-weight
                                                :sink-effects    (merge-with _+_ sink-effects new-sink-effects))]
-                       (dosync
-                        (alter (get-in possible-flow-layer current-location) _+_ possible-weight)
-                        (alter (get-in actual-flow-layer   current-location) _+_ actual-weight))
+                       (accumulate-all-in! possible-flow-layer [current-location] _+_ possible-weight)
+                       (accumulate-all-in! actual-flow-layer   [current-location] _+_ actual-weight)
                        (handle-local-users! current-location use-layer cache-layer cell-depth post-sink-carrier)
                        (if (_> new-possible-weight trans-threshold-volume)
                          post-sink-carrier))))
@@ -326,7 +334,7 @@
 (defn run-storm-surge-simulation!
   [source-layer eco-sink-layer use-layer flow-layers cache-layer
    possible-flow-layer actual-flow-layer cell-width cell-height rows
-   cols trans-threshold storm-centerpoint storm-bearing get-next-bearing]
+   cols trans-threshold storm-centerpoint storm-bearing get-next-bearing monitor]
   (let [m2-per-cell        (* cell-width cell-height)
         storm-track-sample (make-storm-track-sample get-next-bearing
                                                     storm-centerpoint
@@ -348,17 +356,18 @@
     (with-message "Moving the storm surge toward the coast...\n" "All done."
       (with-progress-bar*
         10 ;; show a * every 10 iterations
-        (take-while seq (iterate (p advance-storm!
-                                    eco-sink-layer
-                                    use-layer
-                                    flow-layers
-                                    cache-layer
-                                    possible-flow-layer
-                                    actual-flow-layer
-                                    m2-per-cell
-                                    rows
-                                    cols
-                                    (* trans-threshold m2-per-cell))
+        (take-while seq (iterate (interruptible monitor
+                                                (p advance-storm!
+                                                   eco-sink-layer
+                                                   use-layer
+                                                   flow-layers
+                                                   cache-layer
+                                                   possible-flow-layer
+                                                   actual-flow-layer
+                                                   m2-per-cell
+                                                   rows
+                                                   cols
+                                                   (* trans-threshold m2-per-cell)))
                                  [storm-track-sample storm-surge]))))))
 
 ;; FIXME: It would be good to have a faster way to compute
@@ -390,11 +399,11 @@
 (defmethod distribute-flow! "CoastalStormMovement"
   [{:keys [source-layer eco-sink-layer use-layer flow-layers
            cache-layer possible-flow-layer actual-flow-layer
-           source-points use-points value-type trans-threshold
-           cell-width cell-height rows cols]}]
-  (with-typed-math-syms value-type [_0_ _+_ _*_ *_ _d rv-fn _>]
+           source-points use-points math-context trans-threshold
+           cell-width cell-height rows cols monitor]}]
+  (with-math-context math-context [_0_ _+_ _*_ *_ _d rv-fn _>]
     (let [storm-centerpoint (first source-points)
-          on-track?         (set (filter-matrix-for-coords #(not= _0_ %) (flow-layers "StormTrack")))
+          on-track?         (filter-matrix-for-cell-set #(not= _0_ %) (flow-layers "StormTrack"))
           get-next-bearing  (p get-next-bearing on-track? rows cols)]
       (if-let [storm-bearing (get-next-bearing storm-centerpoint (find-bearing-to-users storm-centerpoint use-points))]
         (run-storm-surge-simulation! source-layer
@@ -411,5 +420,6 @@
                                      trans-threshold
                                      storm-centerpoint
                                      storm-bearing
-                                     get-next-bearing)
+                                     get-next-bearing
+                                     monitor)
         (println "Either the storm source point" storm-centerpoint "is on the map boundary or no storm tracks lead away from it.")))))
@@ -21,13 +21,17 @@
 ;;;
 
 (ns clj-span.models.flood-water
-  (:use [clj-misc.utils      :only (seq2map mapmap iterate-while-seq with-message
+  (:use [clj-misc.utils      :only (seq2map mapmap with-message
                                     memoize-by-first-arg angular-distance p
                                     with-progress-bar-cool euclidean-distance)]
-        [clj-misc.matrix-ops :only (get-neighbors on-bounds? add-ids subtract-ids find-nearest
-                                    find-line-between filter-matrix-for-coords)]))
+        [clj-misc.matrix-ops :only (get-neighbors on-bounds? add-ids subtract-ids make-feature-index
+                                    find-nearest-feature find-line-between
+                                    filter-matrix-for-cell-set)]
+        [clj-misc.grid       :only (accumulate-all-in!)]
+        [clj-span.thinklab-monitor :only (interruptible)]
+        [clj-span.checkpoint       :only (iterate-with-checkpoints remove-checkpoint!)]))
 
-(refer 'clj-span.core :only '(distribute-flow! service-carrier with-typed-math-syms))
+(refer 'clj-span.core :only '(distribute-flow! service-carrier with-math-context))
 
 (def ^:dynamic _0_)
 (def ^:dynamic _+_)
@@ -135,12 +139,10 @@
    {:keys [route possible-weight actual-weight sink-effects] :as floodwater-carrier}]
   (let [possible-density (_d possible-weight mm2-per-cell)
         actual-density   (_d actual-weight   mm2-per-cell)]
+    (accumulate-all-in! possible-flow-layer route _+_ possible-density)
+    (if (not= actual-weight _0_)
+      (accumulate-all-in! actual-flow-layer route _+_ actual-density))
     (dosync
-     (doseq [id route]
-       (commute (get-in possible-flow-layer id) _+_ possible-density))
-     (if (not= actual-weight _0_)
-       (doseq [id route]
-         (commute (get-in actual-flow-layer id) _+_ actual-density)))
      (commute (get-in cache-layer current-id) conj
               (assoc floodwater-carrier
                 :route           nil
@@ -205,14 +207,17 @@
    fall off the map bounds. Once they reach a stream location, the
    carriers will attempt to continue downhill while staying in a
    stream course. All the carriers are moved together in
-   timesteps (more or less)."
+   timesteps (more or less). See clj-span.checkpoint for the
+   :checkpoint-file and :resume? options."
   [params]
   (with-message "Moving the floodwater carriers downhill and downstream...\n" "Done moving floodwater carriers."
     (stop-unless-reducing
      100
-     (iterate-while-seq
-      (p move-carriers-one-step-downstream! params)
-      (create-initial-service-carriers params))))
+     (iterate-with-checkpoints
+      params
+      (interruptible (:monitor params) (p move-carriers-one-step-downstream! params))
+      create-initial-service-carriers))
+    (remove-checkpoint! params))
   (select-keys params [:use-stream-intakes :use-AFs :cache-layer]))
 
 (defn make-buckets
@@ -272,7 +277,8 @@
     (str "Finding nearest stream points to " floodplain-points-label " in floodplains...\n")
     #(str "\nDone. Found " (count %) " intake points.")
     (let [in-stream-extractors (filter in-stream? floodplain-points)
-          claimed-intakes      (zipmap in-stream-extractors (map vector in-stream-extractors))]
+          claimed-intakes      (zipmap in-stream-extractors (map vector in-stream-extractors))
+          stream-index         (make-feature-index in-stream? rows cols)]
       (println (str "Detected " (count in-stream-extractors) " in-stream " floodplain-points-label "."))
       (println (str "Continuing with out-of-stream " floodplain-points-label "..."))
       (apply merge-with concat
@@ -280,7 +286,7 @@
              (with-progress-bar-cool
                :keep
                (- (count floodplain-points) (count in-stream-extractors))
-               (pmap #(if-let [stream-id (find-nearest in-stream? rows cols %)]
+               (pmap #(if-let [stream-id (find-nearest-feature stream-index %)]
                         (if (not-any? levee? (find-line-between stream-id %))
                           {stream-id [%]}))
                      (remove in-stream? floodplain-points)))))))
@@ -299,10 +305,10 @@
   "Stores sets in params map of all levee, river, and floodplain ids under :levee?, :in-stream?, and :in-floodplain?"
   [{:keys [flow-layers] :as params}]
   (assoc params
-    :levee?         (set (filter-matrix-for-coords #(not= _0_ %) (flow-layers "Levees")))
-    :in-stream?     (set (filter-matrix-for-coords #(not= _0_ %) (flow-layers "River")))
-    :in-floodplain? (set (filter-matrix-for-coords #(not= _0_ %) (or (flow-layers "Floodplains100Code")
-                                                                     (flow-layers "Floodplains500Code"))))))
+    :levee?         (filter-matrix-for-cell-set #(not= _0_ %) (flow-layers "Levees"))
+    :in-stream?     (filter-matrix-for-cell-set #(not= _0_ %) (flow-layers "River"))
+    :in-floodplain? (filter-matrix-for-cell-set #(not= _0_ %) (or (flow-layers "Floodplains100Code")
+                                                                  (flow-layers "Floodplains500Code")))))
 
 (defn compute-mm2-per-cell
   "Stores cell-width * cell-height * 10^6 under (params :mm2-per-cell)."
@@ -314,10 +320,10 @@
   [{:keys [source-layer sink-layer flow-layers
            cache-layer possible-flow-layer actual-flow-layer
            source-points sink-points use-points
-           value-type cell-width cell-height rows cols]
+           math-context cell-width cell-height rows cols]
     :as params}]
   (println "Operating in" (if (flow-layers "Floodplains500Code") "500" "100") "year floodplain.")
-  (with-typed-math-syms value-type [_0_ _+_ *_ _d rv-fn _min_]
+  (with-math-context math-context [_0_ _+_ *_ _d rv-fn _min_]
     (-> params
         compute-mm2-per-cell
         create-feature-tests
@@ -2,7 +2,7 @@
   (:use [clojure.core.matrix]
         [clojure.core.matrix.operators]
         [clj-misc.utils :only [mapmap]]
-        [clj-span.thinklab-monitor :only [monitor-info]])
+        [clj-span.thinklab-monitor :only [monitor-info check-interrupt]])
   (:require [clojure.core.reducers :as r]))
 
 (refer 'clj-span.core :only '(distribute-flow!))
@@ -62,7 +62,7 @@
 
 (defn propagate-unused-flow-backwards
   "Returns a map of {:result-name -> matrix} for all 18 of the SPAN outputs."
-  [theoretical-source flow-matrix intermediate-span-outputs]
+  [monitor theoretical-source flow-matrix intermediate-span-outputs]
   (let [inaccessible-source (fill theoretical-source 0.0)
         actual-source       (fill theoretical-source 0.0)
         unused-flow         (fill theoretical-source 0.0)
@@ -73,6 +73,7 @@
         rows                (row-count flow-matrix)
         cols                (column-count flow-matrix)]
     (doseq [[i j] (:outlet-points intermediate-span-outputs)]
+      (check-interrupt monitor)
       (mset! unused-flow i j (mget outgoing-flow i j))
       (loop [open-list  [[i j]]
              closed-set (transient #{})]
@@ -118,7 +119,7 @@
   "Returns a map of {:result-name -> matrix} for 14/18 of the SPAN
    outputs plus the outgoing flow matrix and a list of all serviceshed
    outlet points."
-  [theoretical-source theoretical-sink theoretical-use flow-matrix ordered-points]
+  [monitor theoretical-source theoretical-sink theoretical-use flow-matrix ordered-points]
   (let [upstream-production  (fill theoretical-source 0.0)
         upstream-absorption  (fill theoretical-source 0.0)
         upstream-consumption (fill theoretical-source 0.0)
@@ -130,6 +131,7 @@
         rows                 (row-count flow-matrix)
         cols                 (column-count flow-matrix)]
     (doseq [serviceshed-band (sort-by key > ordered-points)]
+      (check-interrupt monitor)
       (doseq [[i j] (val serviceshed-band)]
         (let [local-upstream-points (upstream-points flow-matrix rows cols [i j])]
           (when (seq local-upstream-points)
@@ -236,10 +238,10 @@
   "Applies the SPAN ecosystem service distribution algorithm to its
   inputs, producing the 18 SPAN output matrices according to the
   chosen flow-type."
-  [use-points source-matrix sink-matrix use-matrix flow-matrix]
+  [monitor use-points source-matrix sink-matrix use-matrix flow-matrix]
   (->> (order-serviceshed-points flow-matrix use-matrix use-points)
-       (propagate-initial-flow-forwards source-matrix sink-matrix use-matrix flow-matrix)
-       (propagate-unused-flow-backwards source-matrix flow-matrix)))
+       (propagate-initial-flow-forwards monitor source-matrix sink-matrix use-matrix flow-matrix)
+       (propagate-unused-flow-backwards monitor source-matrix flow-matrix)))
 
 (defmulti compute-flow-directions
   "Returns a matrix of encoded arrows pointing from each point to its next downstream point."
@@ -267,25 +269,26 @@
 
 (defn run-span-model
   "Produces the 18 SPAN output matrices according to the chosen flow-type."
-  [flow-type source-matrix sink-matrix use-matrix routing-matrices]
+  [monitor flow-type source-matrix sink-matrix use-matrix routing-matrices]
   (let [use-points (points-where pos? use-matrix)]
     (case flow-type
       ;; for these models, the flow surface is constant for all users
       (:surface-water :sediment :dissolved-nutrients)
       (->> (compute-flow-directions flow-type routing-matrices use-points)
-           (distribute-flow use-points source-matrix sink-matrix use-matrix))
+           (distribute-flow monitor use-points source-matrix sink-matrix use-matrix))
       ;; for these models, the flow surface is user-dependent
       (:viewshed :gaussian :trail-system)
       (reduce merge-span-outputs
               (r/map #(->> (compute-flow-directions flow-type routing-matrices [%])
-                           (distribute-flow [%] source-matrix sink-matrix use-matrix))
+                           (distribute-flow monitor [%] source-matrix sink-matrix use-matrix))
                      use-points)))))
 
 (defmethod distribute-flow! "FlowDirection"
   [{:keys [flow-model source-layer sink-layer use-layer flow-layers monitor]}]
   (let [results (mapmap (fn [label] (keyword (str (name label) "-layer")))
                         identity
-                        (run-span-model :surface-water
+                        (run-span-model monitor
+                                        :surface-water
                                         (matrix source-layer)
                                         (matrix sink-layer)
                                         (matrix use-layer)
@@ -34,12 +34,14 @@
 
 (ns clj-span.models.line-of-sight
   (:use [clj-misc.utils      :only (euclidean-distance-2 p def- between? with-progress-bar-cool with-message)]
-        [clj-misc.matrix-ops :only (find-line-between get-line-fn)]
+        [clj-misc.matrix-ops :only (reduce-line-between get-line-fn add-ids)]
+        [clj-misc.grid       :only (accumulate-all-in!)]
+        [clj-span.result-graph :only (store-carrier-in!)]
         [clj-span.thinklab-monitor :only (monitor-info with-interrupt-checking)])
   (:require [clojure.core.reducers :as r])
   (:import (org.integratedmodelling.thinklab.api.listeners IMonitor)))
 
-(refer 'clj-span.core :only '(distribute-flow! service-carrier with-typed-math-syms))
+(refer 'clj-span.core :only '(distribute-flow! tile-halo service-carrier with-math-context))
 
 (def ^:dynamic _0_)
 (def ^:dynamic _+_)
@@ -119,28 +121,75 @@
     [(map second initial-view-space)
      (map second sight-line-remainder)]))
 
+(defn sight-line-reducer
+  "Returns a reducing function over the points [i j] of a sight line
+   (starting with the use point), called as (f acc i j), which keeps
+   in (:filtered-line acc) the 4-tuples of [point elevation distance
+   slope] for all points which can be seen from the use point. acc
+   must start as a transient map with an empty :filtered-line.
+
+   As in split-sight-line, the line is split at its first rise in
+   elevation. Until then, every point steeper from the use point than
+   all before it can be seen. After that, a point must also be higher
+   than the last point seen. distance-fn must be a primitive fn
+   (fn ^double [^long i ^long j] ...) returning the distance in meters
+   from the use point to [i j]."
+  [elev-layer use-elev distance-fn]
+  (fn [{:keys [prev-elev max-elev max-slope remainder?] :as acc} ^long i ^long j]
+    (let [curr-elev (-> elev-layer (nth i) (nth j))]
+      (if (nil? prev-elev) ;; the use point
+        (assoc! acc :prev-elev curr-elev)
+        (let [distance   (.invokePrim ^clojure.lang.IFn$LLD distance-fn i j)
+              curr-slope (_d (_-_ curr-elev use-elev) distance)
+              max-slope  (if (nil? max-slope)
+                           (_- curr-slope 0.01) ;; epsilon to include the first step
+                           max-slope)
+              split?     (and (not remainder?) (_>_ curr-elev prev-elev))
+              max-elev   (if split? prev-elev max-elev)
+              remainder? (or remainder? split?)
+              acc        (assoc! acc
+                                 :prev-elev  curr-elev
+                                 :max-elev   max-elev
+                                 :max-slope  max-slope
+                                 :remainder? remainder?)]
+          (if (and (or (not remainder?) (_>_ curr-elev max-elev))
+                   (_>_ curr-slope max-slope))
+            (assoc! acc
+                    :max-elev      (if remainder? curr-elev max-elev)
+                    :max-slope     curr-slope
+                    :filtered-line (conj (:filtered-line acc) [[i j] curr-elev distance max-slope]))
+            acc))))))
+
 (defn filter-sight-line
   "Returns a sequence of 4-tuples of [point elevation distance slope] for all points which can be seen along the sight-line."
   [sight-line elev-layer use-elev use-loc-in-m to-meters]
-  (let [[initial-view-space sight-line-remainder] (split-sight-line elev-layer sight-line)
-        initial-view-slope (_- (_d (_-_ (get-in elev-layer (second sight-line)) use-elev)
-                                   (euclidean-distance-2 use-loc-in-m (to-meters (second sight-line))))
-                               0.01) ;; epsilon to include the first step
-        first-segment      (prune-hidden-points nil ;; disregard the increasing elevation constraint
-                                                initial-view-slope
-                                                elev-layer
-                                                use-elev
-                                                use-loc-in-m
-                                                to-meters
-                                                initial-view-space)
-        second-segment     (prune-hidden-points (get-in elev-layer (or (last initial-view-space) (first sight-line)))
-                                                (:max-slope first-segment)
-                                                elev-layer
-                                                use-elev
-                                                use-loc-in-m
-                                                to-meters
-                                                sight-line-remainder)]
-    (concat (:filtered-line first-segment) (:filtered-line second-segment))))
+  (let [step (sight-line-reducer elev-layer
+                                 use-elev
+                                 (fn ^double [^long i ^long j] (euclidean-distance-2 use-loc-in-m (to-meters [i j]))))]
+    (:filtered-line
+     (persistent!
+      (reduce (fn [acc [i j]] (step acc i j))
+              (transient {:filtered-line []})
+              sight-line)))))
+
+(defn- reduce-sight-line
+  "Reduces f over the sight line from use-point to source-point as
+   in reduce-line-between. find-line-between rounds slightly
+   differently at different offsets, so in a tiled run (see
+   clj-span.core/run-span-tiled) sight lines are walked in the
+   coordinates of the whole grid. Otherwise, each tile would see
+   different lines than an untiled run."
+  [f init tile-origin use-point source-point]
+  (if tile-origin
+    (let [[oi oj] tile-origin
+          oi      (long oi)
+          oj      (long oj)]
+      (reduce-line-between (fn [acc ^long i ^long j]
+                             (.invokePrim ^clojure.lang.IFn$OLLO f acc (- i oi) (- j oj)))
+                           init
+                           (add-ids use-point tile-origin)
+                           (add-ids source-point tile-origin)))
+    (reduce-line-between f init use-point source-point)))
 
 (defn raycast!
   "Finds a line of sight path between source and use points, checks
@@ -149,15 +198,24 @@
    decay function is applied to the results to compute the visual
    utility originating from the source point."
   [{:keys [source-layer sink-layer elev-layer water-layer cache-layer
-           possible-flow-layer actual-flow-layer to-meters trans-threshold monitor]}
+           possible-flow-layer actual-flow-layer cell-width cell-height tile-origin trans-threshold monitor]}
    [source-point use-point source-loc-in-m use-loc-in-m distance-decay]]
   (with-interrupt-checking ^IMonitor monitor
     (let [use-elev            (get-in elev-layer use-point)
-          filtered-sight-line (filter-sight-line (find-line-between use-point source-point)
-                                                 elev-layer
-                                                 use-elev
-                                                 use-loc-in-m
-                                                 to-meters)
+          [use-i-m use-j-m]   use-loc-in-m
+          ;; the sight line is walked without building its points
+          ;; (see clj-misc.matrix-ops/reduce-line-between)
+          filtered-sight-line (:filtered-line
+                               (persistent!
+                                (reduce-sight-line (sight-line-reducer elev-layer
+                                                                       use-elev
+                                                                       (fn ^double [^long i ^long j]
+                                                                         (Math/sqrt (+ (Math/pow (- use-i-m (* i cell-height)) 2)
+                                                                                       (Math/pow (- use-j-m (* j cell-width))  2)))))
+                                                   (transient {:filtered-line []})
+                                                   tile-origin
+                                                   use-point
+                                                   source-point)))
           [final-point final-elev final-distance final-slope] (last filtered-sight-line)]
       (if (= final-point source-point) ;; source point is visible from use point
         (let [possible-weight (*_ distance-decay
@@ -168,8 +226,9 @@
                                                        final-distance
                                                        (and water-layer (not= _0_ (get-in water-layer source-point)))))]
           (when (_> possible-weight trans-threshold)
-            ;; FIXME: Consing up memory for the sink-effects map.
-            ;;        Store this in a tripartite graph instead.
+            ;; NOTE: For numbers, the sink-effects map only lives
+            ;;       until store-carrier-in! packs it into the result
+            ;;       graph.
             (let [sink-effects  (let [sink-effects (compute-sink-effects sink-layer filtered-sight-line use-elev)
                                       sink-value (get-in sink-layer use-point)]
                                   (if (not= _0_ sink-value)
@@ -182,15 +241,11 @@
                                   :possible-weight possible-weight
                                   :actual-weight   actual-weight
                                   :sink-effects    sink-effects)]
-              (dosync
-               (doseq [id (cons use-point (map first filtered-sight-line))]
-                 (commute (get-in possible-flow-layer id) _+_ possible-weight)
-                 (if (not= _0_ actual-weight)
-                   (commute (get-in actual-flow-layer id) _+_ actual-weight)))
-               ;; FIXME: Conjing the new carrier onto the cache layer.
-               ;;        Eliminate this cache-layer thing and replace
-               ;;        it with a tripartite graph.
-               (commute (get-in cache-layer use-point) conj carrier)))))))))
+              (let [ids (cons use-point (map first filtered-sight-line))]
+                (accumulate-all-in! possible-flow-layer ids _+_ possible-weight)
+                (if (not= _0_ actual-weight)
+                  (accumulate-all-in! actual-flow-layer ids _+_ actual-weight)))
+              (store-carrier-in! cache-layer use-point carrier))))))))
 
 (defn select-in-range-views
   [use-points source-points to-meters]
@@ -205,17 +260,25 @@
                    [source-point use-point source-loc-in-m use-loc-in-m distance-decay]))))))
 
 (defmethod distribute-flow! "LineOfSight"
-  [{:keys [flow-layers source-points use-points cell-width cell-height value-type monitor]
+  [{:keys [flow-layers source-points use-points cell-width cell-height math-context monitor]
     :as params}]
   (let [num-view-lines (* (count source-points) (count use-points))
         to-meters      (fn [[i j]] [(* i cell-height) (* j cell-width)])]
     (monitor-info monitor (str "scanning " num-view-lines " possible view lines"))
     (with-message (str "Scanning " num-view-lines " possible view lines...\n") "\nAll done."
-      (with-typed-math-syms value-type [_0_ _+_ _-_ _*_ _d_ _* *_ _d _- -_ _>_ _<_ _max_ rv-fn _>]
+      (with-math-context math-context [_0_ _+_ _-_ _*_ _d_ _* *_ _d _- -_ _>_ _<_ _max_ rv-fn _>]
+        ;; r/foldcat runs on the fork/join pool, which does not see
+        ;; the math context bindings unless we convey them.
         (r/foldcat
-         (r/map (p raycast! (assoc params
-                              :elev-layer  (flow-layers "Altitude")
-                              :water-layer (flow-layers "WaterBodies")
-                              :to-meters   (memoize to-meters)))
+         (r/map (bound-fn* (p raycast! (assoc params
+                                         :elev-layer  (flow-layers "Altitude")
+                                         :water-layer (flow-layers "WaterBodies"))))
                 (select-in-range-views use-points source-points to-meters)))
         (monitor-info monitor (str "completed LineOfSight simulation successfully"))))))
+
+;; View lines are straight and no longer than max-source-view-distance,
+;; so every source, use, and sink on a line through a cell lies within
+;; that distance of it.
+(defmethod tile-halo "LineOfSight"
+  [_]
+  max-source-view-distance)
@@ -28,9 +28,12 @@
 
 (ns clj-span.models.proximity
   (:use [clj-misc.utils      :only (def- p my->> mapmap euclidean-distance with-progress-bar-cool with-message remove-nil-val-entries)]
-        [clj-misc.matrix-ops :only (get-neighbors get-line-fn find-bounding-box)]))
+        [clj-misc.matrix-ops :only (get-neighbors get-line-fn find-bounding-box)]
+        [clj-misc.grid       :only (accumulate-all-in!)]
+        [clj-span.result-graph :only (store-carrier-in!)]
+        [clj-span.thinklab-monitor :only (interruptible)]))
 
-(refer 'clj-span.core :only '(distribute-flow! service-carrier with-typed-math-syms))
+(refer 'clj-span.core :only '(distribute-flow! tile-halo service-carrier with-math-context))
 
 (def ^:dynamic _0_)
 (def ^:dynamic _+_)
@@ -78,12 +81,10 @@
                             :possible-weight decayed-pweight
                             :actual-weight   decayed-aweight
                             :sink-effects    (mapmap identity #(_* % decay-value) sink-effects))]
-      (dosync
-       (doseq [id route]
-         (alter (get-in possible-flow-layer id) _+_ decayed-pweight)
-         (if (not= _0_ decayed-aweight)
-           (alter (get-in actual-flow-layer id) _+_ decayed-aweight)))
-       (alter (get-in cache-layer boundary-id) conj decayed-carrier)))))
+      (accumulate-all-in! possible-flow-layer route _+_ decayed-pweight)
+      (if (not= _0_ decayed-aweight)
+        (accumulate-all-in! actual-flow-layer route _+_ decayed-aweight))
+      (store-carrier-in! cache-layer boundary-id decayed-carrier))))
 
 (defn- progress-carrier
   "If the location is a sink, its id and sink-value are saved on the
@@ -157,22 +158,30 @@
   [{:keys [source-layer sink-layer use-layer
            cache-layer possible-flow-layer actual-flow-layer
            source-points cell-width cell-height rows cols
-           value-type trans-threshold]}]
-  (with-typed-math-syms value-type [_0_ _+_ _* _>_ rv-fn _>]
+           math-context trans-threshold monitor]}]
+  (with-math-context math-context [_0_ _+_ _* _>_ rv-fn _>]
     (let [to-meters (fn [[i j]] [(* i cell-height) (* j cell-width)])]
       (with-message (str "Projecting " (count source-points) " search bubbles...\n") "\nAll done."
         (with-progress-bar-cool
           :drop
           (count source-points)
-          (pmap (p distribute-gaussian!
-                   source-layer
-                   sink-layer
-                   use-layer
-                   cache-layer
-                   possible-flow-layer
-                   actual-flow-layer
-                   to-meters
-                   trans-threshold
-                   rows
-                   cols)
+          (pmap (interruptible monitor
+                               (p distribute-gaussian!
+                                  source-layer
+                                  sink-layer
+                                  use-layer
+                                  cache-layer
+                                  possible-flow-layer
+                                  actual-flow-layer
+                                  to-meters
+                                  trans-threshold
+                                  rows
+                                  cols))
                 source-points))))))
+
+;; A search bubble never leaves the circle of radius mile around its
+;; source, so the route of any carrier which reaches a cell lies
+;; within two miles of that cell.
+(defmethod tile-halo "Proximity"
+  [_]
+  (* 2 mile))
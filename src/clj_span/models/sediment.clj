@@ -31,13 +31,17 @@
 ;;;
 
 (ns clj-span.models.sediment
-  (:use [clj-misc.utils      :only (seq2map mapmap iterate-while-seq with-message
+  (:use [clj-misc.utils      :only (seq2map mapmap with-message
                                     memoize-by-first-arg angular-distance p
                                     with-progress-bar-cool euclidean-distance)]
-        [clj-misc.matrix-ops :only (get-neighbors on-bounds? add-ids subtract-ids find-nearest
-                                    find-line-between filter-matrix-for-coords)]))
+        [clj-misc.matrix-ops :only (get-neighbors on-bounds? add-ids subtract-ids make-feature-index
+                                    find-nearest-feature find-line-between
+                                    filter-matrix-for-cell-set ids->cell-set)]
+        [clj-misc.grid       :only (accumulate-all-in!)]
+        [clj-span.thinklab-monitor :only (interruptible)]
+        [clj-span.checkpoint       :only (iterate-with-checkpoints remove-checkpoint!)]))
 
-(refer 'clj-span.core :only '(distribute-flow! service-carrier with-typed-math-syms))
+(refer 'clj-span.core :only '(distribute-flow! service-carrier with-math-context))
 
 (def ^:dynamic _0_)
 (def ^:dynamic _+_)
@@ -57,24 +61,23 @@
             sink-values      (map #(*_ (sink-AFs %) (get-in sink-layer %)) sink-ids)
             total-sink       (reduce _+_ sink-values)
             sink-percents    (map #(_d_ % total-sink) sink-values)]
-        (dosync
-         (ref-set stream-cache ())
-         (doseq [{:keys [route actual-weight sink-effects] :as carrier} service-carriers]
-           (dorun
-            (map (fn [id percent]
-                   (if (use-id? id) ; this floodplain sink is co-located with a user
-                     (let [actual-weight-portion (_*_ actual-weight percent)]
-                       (doseq [id route]
-                         (commute (get-in possible-flow-layer id) _+_ actual-weight-portion)
-                         (commute (get-in actual-flow-layer   id) _+_ actual-weight-portion))
+        (dosync (ref-set stream-cache ()))
+        (doseq [{:keys [route actual-weight sink-effects] :as carrier} service-carriers]
+          (dorun
+           (map (fn [id percent]
+                  (if (use-id? id) ; this floodplain sink is co-located with a user
+                    (let [actual-weight-portion (_*_ actual-weight percent)]
+                      (accumulate-all-in! possible-flow-layer route _+_ actual-weight-portion)
+                      (accumulate-all-in! actual-flow-layer   route _+_ actual-weight-portion)
+                      (dosync
                        (commute (get-in cache-layer id) conj
                                 (assoc carrier
                                   :route           nil
                                   :possible-weight actual-weight-portion
                                   :actual-weight   actual-weight-portion
-                                  :sink-effects    (mapmap identity #(_*_ % percent) sink-effects))))))
-                 sink-ids
-                 sink-percents))))))))
+                                  :sink-effects    (mapmap identity #(_*_ % percent) sink-effects)))))))
+                sink-ids
+                sink-percents)))))))
 
 (defn nearest-to-bearing
   [bearing id neighbors]
@@ -213,14 +216,17 @@
    in a low elevation point, or fall off the map bounds. Once they
    reach a stream location, the carriers will attempt to continue
    downhill while staying in a stream course. All the carriers are
-   moved together in timesteps (more or less)."
+   moved together in timesteps (more or less). See
+   clj-span.checkpoint for the :checkpoint-file and :resume? options."
   [params]
   (with-message "Moving the sediment carriers downhill and downstream...\n" "Done moving sediment carriers."
     (stop-unless-reducing
      100
-     (iterate-while-seq
-      (p move-carriers-one-step-downstream! params)
-      (create-initial-service-carriers params))))
+     (iterate-with-checkpoints
+      params
+      (interruptible (:monitor params) (p move-carriers-one-step-downstream! params))
+      create-initial-service-carriers))
+    (remove-checkpoint! params))
   (select-keys params [:stream-intakes :sink-layer :sink-AFs :cache-layer :possible-flow-layer :actual-flow-layer :use-id?]))
 
 (defn make-buckets
@@ -274,14 +280,15 @@
     "Finding nearest stream points to sinks in floodplains...\n"
     #(str "\nDone. Found " (count %) " intake points.")
     (let [in-stream-sinks (filter in-stream? sink-points)
-          claimed-intakes (zipmap in-stream-sinks (map vector in-stream-sinks))]
+          claimed-intakes (zipmap in-stream-sinks (map vector in-stream-sinks))
+          stream-index    (make-feature-index in-stream? rows cols)]
       (println "Detected" (count in-stream-sinks) "in-stream sinks.\nContinuing with out-of-stream sinks...")
       (apply merge-with concat
              claimed-intakes
              (with-progress-bar-cool
                :keep
                (- (count sink-points) (count in-stream-sinks))
-               (pmap #(if-let [stream-id (find-nearest in-stream? rows cols %)]
+               (pmap #(if-let [stream-id (find-nearest-feature stream-index %)]
                         (if (not-any? levee? (find-line-between stream-id %))
                           {stream-id [%]}))
                      (remove in-stream? sink-points)))))))
@@ -294,12 +301,12 @@
 
 (defn create-feature-tests
   "Stores sets in params map of all use, levee, river, and floodplain ids under :use-id?, :levee?, :in-stream?, and :in-floodplain?"
-  [{:keys [use-points flow-layers] :as params}]
+  [{:keys [use-points flow-layers rows cols] :as params}]
   (assoc params
-    :use-id?        (set use-points)
-    :levee?         (set (filter-matrix-for-coords #(not= _0_ %) (flow-layers "Levee")))
-    :in-stream?     (set (filter-matrix-for-coords #(not= _0_ %) (flow-layers "River")))
-    :in-floodplain? (set (filter-matrix-for-coords #(not= _0_ %) (flow-layers "FloodplainsCode")))))
+    :use-id?        (ids->cell-set rows cols use-points)
+    :levee?         (filter-matrix-for-cell-set #(not= _0_ %) (flow-layers "Levee"))
+    :in-stream?     (filter-matrix-for-cell-set #(not= _0_ %) (flow-layers "River"))
+    :in-floodplain? (filter-matrix-for-cell-set #(not= _0_ %) (flow-layers "FloodplainsCode"))))
 
 (defn compute-ha-per-cell
   "Stores cell-width * cell-height * 10^-4 under (params :ha-per-cell)."
@@ -312,9 +319,9 @@
   [{:keys [source-layer sink-layer flow-layers
            cache-layer possible-flow-layer actual-flow-layer
            source-points sink-points use-points
-           value-type cell-width cell-height rows cols]
+           math-context cell-width cell-height rows cols]
     :as params}]
-  (with-typed-math-syms value-type [_0_ _+_ *_ _d rv-fn _min_ _*_ _d_]
+  (with-math-context math-context [_0_ _+_ *_ _d rv-fn _min_ _*_ _d_]
     (-> params
         compute-ha-per-cell
         create-feature-tests
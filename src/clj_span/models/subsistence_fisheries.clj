@@ -48,14 +48,18 @@
                                     shortest-path-bfgs
                                     shortest-path-idgs)]
         [clj-misc.matrix-ops :only (subtract-ids
-                                    filter-matrix-for-coords
+                                    filter-matrix-for-cell-set
+                                    ids->cell-set
                                     get-neighbors
                                     get-bearing
-                                    find-nearest
-                                    find-in-range
-                                    find-line-between)]))
+                                    make-feature-index
+                                    find-nearest-feature
+                                    find-features-in-range
+                                    find-line-between)]
+        [clj-misc.grid       :only (accumulate-all-in!)]
+        [clj-span.thinklab-monitor :only (interruptible)]))
 
-(refer 'clj-span.core :only '(distribute-flow! service-carrier with-typed-math-syms))
+(refer 'clj-span.core :only '(distribute-flow! service-carrier with-math-context))
 
 (def ^:dynamic _0_)
 (def ^:dynamic *_)
@@ -70,52 +74,56 @@
 (defn go-fish!
   [fish-supply fish-left? possible-flow-layer actual-flow-layer km2-per-cell
    {:keys [need route cache fishing-area] :as fisherman}]
-  (dosync
-   (let [current-id       (peek route)
-         local-supply-ref (fish-supply current-id)
-         local-supply     (deref local-supply-ref)
-         need-remaining   (if (_> local-supply 0.0) ;; Check for fish locally.
-                            ;; There are fish here. Let's get some.
-                            (let [fish-caught         (rv-fn 'min local-supply need)
-                                  fish-remaining      (rv-fn '(fn [s n] (- s (min s n))) local-supply need)
-                                  need-remaining      (rv-fn '(fn [s n] (- n (min s n))) local-supply need)
-                                  fish-caught-per-km2 (_d fish-caught km2-per-cell)]
-                              ;; Reduce the local-supply-ref by this amount.
-                              (alter local-supply-ref (constantly fish-remaining))
-                              ;; Update the possible and actual flow layers.
-                              (doseq [id route]
-                                (alter (get-in possible-flow-layer id) _+_ fish-caught-per-km2)
-                                (alter (get-in actual-flow-layer   id) _+_ fish-caught-per-km2))
-                              ;; Store a service-carrier in your cache.
-                              (alter cache conj (struct-map service-carrier
-                                                  :source-id       current-id
-                                                  ;;:route           (rseq route) ;; Deprecated
-                                                  :possible-weight fish-caught-per-km2
-                                                  :actual-weight   fish-caught-per-km2))
-                              need-remaining)
-                            need)]
-     ;; On to the next.
-     (if (_> need-remaining 0.0)
-       (if-let [fishing-area-remaining (seq (filter fish-left? fishing-area))]
-         (assoc fisherman
-           :need         need-remaining
-           :route        (conj (pop route) (first fishing-area-remaining))
-           :fishing-area (rest fishing-area-remaining)))))))
+  (let [current-id (peek route)
+        ;; The fish supply is contended, so this transaction may be
+        ;; retried. The flow layers are only updated once it commits.
+        [need-remaining fish-caught-per-km2]
+        (dosync
+         (let [local-supply-ref (fish-supply current-id)
+               local-supply     (deref local-supply-ref)]
+           (if (_> local-supply 0.0) ;; Check for fish locally.
+             ;; There are fish here. Let's get some.
+             (let [fish-caught         (rv-fn 'min local-supply need)
+                   fish-remaining      (rv-fn '(fn [s n] (- s (min s n))) local-supply need)
+                   need-remaining      (rv-fn '(fn [s n] (- n (min s n))) local-supply need)
+                   fish-caught-per-km2 (_d fish-caught km2-per-cell)]
+               ;; Reduce the local-supply-ref by this amount.
+               (alter local-supply-ref (constantly fish-remaining))
+               ;; Store a service-carrier in your cache.
+               (alter cache conj (struct-map service-carrier
+                                   :source-id       current-id
+                                   ;;:route           (rseq route) ;; Deprecated
+                                   :possible-weight fish-caught-per-km2
+                                   :actual-weight   fish-caught-per-km2))
+               [need-remaining fish-caught-per-km2])
+             [need nil])))]
+    ;; Update the possible and actual flow layers.
+    (when fish-caught-per-km2
+      (accumulate-all-in! possible-flow-layer route _+_ fish-caught-per-km2)
+      (accumulate-all-in! actual-flow-layer   route _+_ fish-caught-per-km2))
+    ;; On to the next.
+    (if (_> need-remaining 0.0)
+      (if-let [fishing-area-remaining (seq (filter fish-left? fishing-area))]
+        (assoc fisherman
+          :need         need-remaining
+          :route        (conj (pop route) (first fishing-area-remaining))
+          :fishing-area (rest fishing-area-remaining))))))
 
 (defn send-forth-fishermen!
-  [{:keys [fishermen fish-supply possible-flow-layer actual-flow-layer km2-per-cell] :as params}]
+  [{:keys [fishermen fish-supply possible-flow-layer actual-flow-layer km2-per-cell monitor] :as params}]
   (with-message "Let's go fishing...\n" "All done."
     (let [fish-left? #(if-let [supply-ref (fish-supply %)] (_> (deref supply-ref) 0.0))]
       (dorun (iterate-while-seq
-              #(with-message "Fishermen: " count
-                 (doall (pmap (p go-fish! fish-supply fish-left? possible-flow-layer actual-flow-layer km2-per-cell) %)))
+              (interruptible monitor
+                             #(with-message "Fishermen: " count
+                                (doall (pmap (p go-fish! fish-supply fish-left? possible-flow-layer actual-flow-layer km2-per-cell) %))))
               fishermen)))))
 
 (def ^:dynamic *fishing-range* 5000.0) ;; max distance in meters that a fisherman can sail from shore
 
 ;; FIXME: Use locations with no path to the coast will not create fishermen agents.
 (defn make-fishermen
-  [{:keys [fishing-spot? fish-demand fishing-routes cache-layer cell-width cell-height rows cols] :as params}]
+  [{:keys [fishing-spot-index fish-demand fishing-routes cache-layer cell-width cell-height] :as params}]
   (assoc params
     :fishermen (with-message
                  "Creating fishermen agents...\n"
@@ -137,13 +145,11 @@
                                                       :need         demand
                                                       :route        route
                                                       :cache        (get-in cache-layer (first route))
-                                                      :fishing-area (doall (find-in-range fishing-spot?
-                                                                                          *fishing-range*
-                                                                                          cell-width
-                                                                                          cell-height
-                                                                                          rows
-                                                                                          cols
-                                                                                          (peek route))))))
+                                                      :fishing-area (doall (find-features-in-range fishing-spot-index
+                                                                                                   *fishing-range*
+                                                                                                   cell-width
+                                                                                                   cell-height
+                                                                                                   (peek route))))))
                                                 demand-part route-part)))
                                         (partition-all 1000 fish-demand)
                                         (partition-all 1000 fishing-routes))))))))
@@ -163,7 +169,7 @@
 (def follow-path (memoize follow-path))
 
 (defn find-shortest-paths-to-coast-heuristic
-  [{:keys [path? fishing-spot? rows cols use-points] :as params}]
+  [{:keys [path? fishing-spot? path-index fishing-spot-index rows cols use-points] :as params}]
   (assoc params
     :fishing-routes (let [follow-path-wrapper (p follow-path path? rows cols)]
                       (with-message "Finding paths to coast...\n" "\nAll done."
@@ -171,8 +177,8 @@
                           :keep
                           (count use-points)
                           (map
-                           #(let [path-root    (find-nearest path?         rows cols %)
-                                  fishing-spot (find-nearest fishing-spot? rows cols %)]
+                           #(let [path-root    (find-nearest-feature path-index         %)
+                                  fishing-spot (find-nearest-feature fishing-spot-index %)]
                               (if (= path-root fishing-spot)
                                 (vec (find-line-between % path-root))
                                 (if-let [path-ids (seq (shortest-path-bfgs path-root
@@ -183,7 +189,7 @@
                            use-points))))))
 
 (defn find-shortest-paths-to-coast-idgs
-  [{:keys [path? fishing-spot? rows cols use-points] :as params}]
+  [{:keys [path? fishing-spot? path-index rows cols use-points] :as params}]
   (assoc params
     :fishing-routes (let [follow-path-wrapper (p follow-path path? rows cols)]
                       (with-message "Finding paths to coast...\n" "\nAll done."
@@ -191,7 +197,7 @@
                           :keep
                           (count use-points)
                           (map
-                           #(let [path-root (find-nearest path? rows cols %)]
+                           #(let [path-root (find-nearest-feature path-index %)]
                               (if-let [path-ids (seq (shortest-path-idgs path-root
                                                                          follow-path-wrapper
                                                                          fishing-spot?))]
@@ -200,7 +206,7 @@
 
 (defn find-shortest-paths-to-coast
   "Fuck it. I'm just drawing a line and going to bed."
-  [{:keys [path? fishing-spot? rows cols use-points] :as params}]
+  [{:keys [path-index fishing-spot-index use-points monitor] :as params}]
   (assoc params
     :fishing-routes (with-message "Finding paths to coast...\n" "\nAll done."
                       (with-progress-bar-cool
@@ -208,13 +214,15 @@
                         (count use-points)
                         (apply concat
                                (pmap
-                                (fn [part]
-                                  (doall
-                                   (map #(let [path-root    (find-nearest path?         rows cols %)
-                                               fishing-spot (find-nearest fishing-spot? rows cols %)]
-                                           (vec (concat (find-line-between % path-root)
-                                                        (rest (find-line-between path-root fishing-spot)))))
-                                        part)))
+                                (interruptible
+                                 monitor
+                                 (fn [part]
+                                   (doall
+                                    (map #(let [path-root    (find-nearest-feature path-index         %)
+                                                fishing-spot (find-nearest-feature fishing-spot-index %)]
+                                            (vec (concat (find-line-between % path-root)
+                                                         (rest (find-line-between path-root fishing-spot)))))
+                                         part))))
                                 (partition-all 1000 use-points)))))))
 
 (defn calculate-fish-supply-and-demand
@@ -231,10 +239,18 @@
 
 (defn create-feature-tests
   "Stores sets in params map of all fishing-spot and path ids under :fishing-spot? and :path? respectively."
-  [{:keys [source-points flow-layers] :as params}]
+  [{:keys [source-points flow-layers rows cols] :as params}]
   (assoc params
-    :fishing-spot? (set source-points)
-    :path?         (set (filter-matrix-for-coords #(not= _0_ %) (flow-layers "Path")))))
+    :fishing-spot? (ids->cell-set rows cols source-points)
+    :path?         (filter-matrix-for-cell-set #(not= _0_ %) (flow-layers "Path"))))
+
+(defn create-feature-indexes
+  "Stores nearest-feature indexes of the fishing-spot and path ids
+   under :fishing-spot-index and :path-index respectively."
+  [{:keys [fishing-spot? path? rows cols] :as params}]
+  (assoc params
+    :fishing-spot-index (make-feature-index fishing-spot? rows cols)
+    :path-index         (make-feature-index path?         rows cols)))
 
 (defn compute-km2-per-cell
   "Stores cell-width * cell-height * 10^-6 under (params :km2-per-cell)."
@@ -249,12 +265,13 @@
   [{:keys [source-layer use-layer flow-layers
            cache-layer possible-flow-layer actual-flow-layer
            source-points use-points
-           value-type cell-width cell-height rows cols]
+           math-context cell-width cell-height rows cols]
     :as params}]
-  (with-typed-math-syms value-type [_0_ *_ _d _*_ _+_ _> rv-fn]
+  (with-math-context math-context [_0_ *_ _d _*_ _+_ _> rv-fn]
     (-> params
         compute-km2-per-cell
         create-feature-tests
+        create-feature-indexes
         calculate-fish-supply-and-demand
         find-shortest-paths-to-coast
         make-fishermen
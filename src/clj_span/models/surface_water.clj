@@ -26,14 +26,15 @@
                                     with-progress-bar-cool depth-first-graph-traversal
                                     depth-first-graph-ordering depth-first-graph-paths
                                     manhattan-distance-2 dofold]]
-        [clj-misc.matrix-ops :only [get-neighbors on-bounds? subtract-ids find-nearest
+        [clj-misc.matrix-ops :only [get-neighbors on-bounds? subtract-ids make-feature-index
                                     filter-matrix-for-coords make-matrix map-matrix
-                                    get-neighbors-clockwise group-by-adjacency]]
+                                    get-neighbors-clockwise group-by-adjacency
+                                    find-nearest-feature ids->cell-set]]
         [clj-span.thinklab-monitor :only (monitor-info with-interrupt-checking)])
   (:require [clojure.core.reducers :as r])
   (:import (org.integratedmodelling.thinklab.api.listeners IMonitor)))
 
-(refer 'clj-span.core :only '(distribute-flow! service-carrier with-typed-math-syms))
+(refer 'clj-span.core :only '(distribute-flow! service-carrier with-math-context))
 
 (def ^:dynamic _0_)
 (def ^:dynamic _+_)
@@ -133,7 +134,7 @@
                                                     (reduce _+_ (map #(get-in use-layer %) users))
                                                     _0_)))
               _-_           (fn [A B] (rv-fn '(fn [a b] (max (- a b) 0.0)) A B))
-              work-fn       (p distribute-water-locally! (assoc params :intake-layer intake-layer :_-_ _-_))
+              work-fn       (bound-fn* (p distribute-water-locally! (assoc params :intake-layer intake-layer :_-_ _-_)))
               num-threads   (* (.availableProcessors (Runtime/getRuntime)) 2)]
           (doseq [band-number (range (apply max (keys serviceshed-bands)) -1 -1)]
             (let [nodes         (serviceshed-bands band-number)
@@ -363,14 +364,15 @@
     "Finding nearest stream points to all users...\n"
     #(str "\nDone. Found " (count %) " intake points.")
     (let [in-stream-users (filter safe-stream-points use-points)
-          claimed-intakes (zipmap in-stream-users (map vector in-stream-users))]
+          claimed-intakes (zipmap in-stream-users (map vector in-stream-users))
+          stream-index    (make-feature-index safe-stream-points rows cols)]
       (println "Detected" (count in-stream-users) "in-stream users.\nContinuing with out-of-stream users...")
       (apply merge-with #(reduce conj %1 %2)
              claimed-intakes
              (with-progress-bar-cool
                :keep
                (- (count use-points) (count in-stream-users))
-               (pmap #(if-let [stream-id (find-nearest safe-stream-points rows cols %)] {stream-id [%]})
+               (pmap #(if-let [stream-id (find-nearest-feature stream-index %)] {stream-id [%]})
                      (remove safe-stream-points use-points)))))))
 
 (defn link-streams-to-users
@@ -378,7 +380,7 @@
   [{:keys [in-stream? rows cols use-points monitor] :as params}]
   (monitor-info monitor "associating users with stream points")
   (with-interrupt-checking ^IMonitor monitor
-    (let [safe-stream-points (set (remove (p on-bounds? rows cols) in-stream?))]
+    (let [safe-stream-points (ids->cell-set rows cols (remove (p on-bounds? rows cols) in-stream?))]
       (assoc params
         :stream-intakes (find-nearest-stream-points safe-stream-points rows cols use-points)))))
 
@@ -389,8 +391,8 @@
     :in-stream? (set (filter-matrix-for-coords #(not= _0_ %) (flow-layers "River")))))
 
 (defmethod distribute-flow! "SurfaceWaterMovement"
-  [{:keys [flow-layers value-type monitor] :as params}]
-  (let [results (with-typed-math-syms value-type [_0_ _+_ _-_ *_ _d rv-fn _min_ _<_ _>_ _> _*_ _d_]
+  [{:keys [flow-layers math-context monitor] :as params}]
+  (let [results (with-math-context math-context [_0_ _+_ _-_ *_ _d rv-fn _min_ _<_ _>_ _> _*_ _d_]
                   (-> (assoc params :elev-layer (flow-layers "Altitude"))
                       create-in-stream-test
                       link-streams-to-users
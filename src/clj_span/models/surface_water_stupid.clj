@@ -24,9 +24,10 @@
   (:use [clj-misc.utils      :only (seq2map mapmap iterate-while-seq with-message
                                     memoize-by-first-arg angular-distance p
                                     with-progress-bar-cool)]
-        [clj-misc.matrix-ops :only (get-neighbors on-bounds? subtract-ids find-nearest filter-matrix-for-coords)]))
+        [clj-misc.matrix-ops :only (get-neighbors on-bounds? subtract-ids make-feature-index
+                                    find-nearest-feature filter-matrix-for-cell-set)]))
 
-(refer 'clj-span.core :only '(distribute-flow! service-carrier with-typed-math-syms))
+(refer 'clj-span.core :only '(distribute-flow! service-carrier with-math-context))
 
 (def ^:dynamic _0_)
 (def ^:dynamic _+_)
@@ -269,14 +270,15 @@
     "Finding nearest stream points to all users...\n"
     #(str "\nDone. Found " (count %) " intake points.")
     (let [in-stream-users (filter in-stream? use-points)
-          claimed-intakes (zipmap in-stream-users (map vector in-stream-users))]
+          claimed-intakes (zipmap in-stream-users (map vector in-stream-users))
+          stream-index    (make-feature-index in-stream? rows cols)]
       (println "Detected" (count in-stream-users) "in-stream users.\nContinuing with out-of-stream users...")
       (apply merge-with concat
              claimed-intakes
              (with-progress-bar-cool
                :keep
                (- (count use-points) (count in-stream-users))
-               (pmap #(if-let [stream-id (find-nearest in-stream? rows cols %)] {stream-id [%]})
+               (pmap #(if-let [stream-id (find-nearest-feature stream-index %)] {stream-id [%]})
                      (remove in-stream? use-points)))))))
 
 (defn link-streams-to-users
@@ -289,7 +291,7 @@
   "Stores a set of all in-stream ids under (params :in-stream?)."
   [{:keys [flow-layers] :as params}]
   (assoc params
-    :in-stream? (set (filter-matrix-for-coords #(not= _0_ %) (flow-layers "River")))))
+    :in-stream? (filter-matrix-for-cell-set #(not= _0_ %) (flow-layers "River"))))
 
 (defn compute-trans-threshold-volume
   "Stores trans-threshold * mm2-per-cell under (params :trans-threshold-volume)."
@@ -308,9 +310,9 @@
            cache-layer possible-flow-layer actual-flow-layer
            source-points sink-points use-points
            cell-width cell-height rows cols
-           value-type trans-threshold]
+           math-context trans-threshold]
     :as params}]
-  (with-typed-math-syms value-type [_0_ _+_ *_ _d rv-fn _min_ _> _*_ _d_]
+  (with-math-context math-context [_0_ _+_ *_ _d rv-fn _min_ _> _*_ _d_]
     (-> params
         compute-mm2-per-cell
         compute-trans-threshold-volume
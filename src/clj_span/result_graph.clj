@@ -0,0 +1,252 @@
+;;; Copyright 2010-2013 Gary Johnson
+;;;
+;;; This file is part of clj-span.
+;;;
+;;; clj-span is free software: you can redistribute it and/or modify
+;;; it under the terms of the GNU General Public License as published
+;;; by the Free Software Foundation, either version 3 of the License,
+;;; or (at your option) any later version.
+;;;
+;;; clj-span is distributed in the hope that it will be useful, but
+;;; WITHOUT ANY WARRANTY; without even the implied warranty of
+;;; MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+;;; General Public License for more details.
+;;;
+;;; You should have received a copy of the GNU General Public License
+;;; along with clj-span.  If not, see <http://www.gnu.org/licenses/>.
+;;;
+;;;-------------------------------------------------------------------
+;;;
+;;; This namespace defines a compact tripartite source-sink-use graph
+;;; which may be used in place of the cache-layer (a matrix of refs
+;;; holding lists of service-carriers) to store the results of a
+;;; numbers simulation.
+;;;
+;;; While the simulation runs, flow models append carriers to the
+;;; graph with store-carrier-in!. Each carrier becomes one edge from a
+;;; source cell to a use cell with its possible and actual weights,
+;;; plus one sink edge for every entry in its sink-effects map. Cell
+;;; ids are packed into ints as (i * cols + j), and all weights are
+;;; kept in primitive arrays.
+;;;
+;;; Once the simulation ends, freeze-result-graph sorts the edges by
+;;; use cell into compressed sparse row (CSR) form, and the
+;;; clj-span.analyzer functions read their sums straight from it.
+
+(ns clj-span.result-graph
+  (:use [clj-misc.utils :only (parallel-blocks)]))
+
+(definterface IResultGraph
+  (^void addCarrier [^int useId ^int sourceId ^double possibleWeight ^double actualWeight sinkEffects])
+  (freeze []))
+
+(defn- grow-ints
+  ^ints [^ints a n]
+  (let [b (int-array (max (long n) (* 2 (alength a))))]
+    (System/arraycopy a 0 b 0 (alength a))
+    b))
+
+(defn- grow-doubles
+  ^doubles [^doubles a n]
+  (let [b (double-array (max (long n) (* 2 (alength a))))]
+    (System/arraycopy a 0 b 0 (alength a))
+    b))
+
+;; All appends are made under the graph's monitor, which is held only
+;; long enough to copy one carrier's numbers into the arrays.
+(deftype ResultGraph [^long rows
+                      ^long cols
+                      ^:unsynchronized-mutable ^long  num-edges
+                      ^:unsynchronized-mutable ^long  num-sink-edges
+                      ^:unsynchronized-mutable ^ints  use-ids
+                      ^:unsynchronized-mutable ^ints  source-ids
+                      ^:unsynchronized-mutable ^doubles possible-weights
+                      ^:unsynchronized-mutable ^doubles actual-weights
+                      ^:unsynchronized-mutable ^ints  sink-starts
+                      ^:unsynchronized-mutable ^ints  sink-ids
+                      ^:unsynchronized-mutable ^doubles sink-values]
+  IResultGraph
+  (addCarrier [this use-id source-id possible-weight actual-weight sink-effects]
+    (locking this
+      (let [e (int num-edges)]
+        (when (== e (alength use-ids))
+          (set! use-ids          (grow-ints    use-ids          (inc e)))
+          (set! source-ids       (grow-ints    source-ids       (inc e)))
+          (set! possible-weights (grow-doubles possible-weights (inc e)))
+          (set! actual-weights   (grow-doubles actual-weights   (inc e)))
+          (set! sink-starts      (grow-ints    sink-starts      (+ e 2))))
+        (aset use-ids          e use-id)
+        (aset source-ids       e source-id)
+        (aset possible-weights e possible-weight)
+        (aset actual-weights   e actual-weight)
+        (let [s (+ num-sink-edges (count sink-effects))]
+          (when (> s (alength sink-ids))
+            (set! sink-ids    (grow-ints    sink-ids    s))
+            (set! sink-values (grow-doubles sink-values s))))
+        (doseq [[[i j] value] sink-effects]
+          (aset sink-ids    (int num-sink-edges) (int (+ (* (long i) cols) (long j))))
+          (aset sink-values (int num-sink-edges) (double value))
+          (set! num-sink-edges (inc num-sink-edges)))
+        (set! num-edges (inc e))
+        (aset sink-starts (int num-edges) (int num-sink-edges)))))
+
+  (freeze [this]
+    (locking this
+      (let [num-cells    (int (* rows cols))
+            num-edges    (int num-edges)
+            use-offsets  (int-array (inc num-cells))
+            edge-order   (int-array num-edges)
+            next-slot    (int-array num-cells)]
+        ;; Counting sort of the edges by use id.
+        (dotimes [e num-edges]
+          (let [u (inc (aget use-ids e))]
+            (aset use-offsets u (inc (aget use-offsets u)))))
+        (dotimes [c num-cells]
+          (aset use-offsets (inc c) (+ (aget use-offsets (inc c)) (aget use-offsets c))))
+        (System/arraycopy use-offsets 0 next-slot 0 num-cells)
+        (dotimes [e num-edges]
+          (let [u    (aget use-ids e)
+                slot (aget next-slot u)]
+            (aset edge-order slot e)
+            (aset next-slot u (inc slot))))
+        (let [sorted-source-ids  (int-array num-edges)
+              sorted-possible    (double-array num-edges)
+              sorted-actual      (double-array num-edges)
+              sorted-sink-starts (int-array (inc num-edges))
+              sorted-sink-ids    (int-array num-sink-edges)
+              sorted-sink-values (double-array num-sink-edges)]
+          (loop [k 0, s 0]
+            (when (< k num-edges)
+              (let [e     (aget edge-order k)
+                    from  (aget sink-starts e)
+                    n     (- (aget sink-starts (inc e)) from)]
+                (aset sorted-source-ids k (aget source-ids e))
+                (aset sorted-possible   k (aget possible-weights e))
+                (aset sorted-actual     k (aget actual-weights e))
+                (System/arraycopy sink-ids    from sorted-sink-ids    s n)
+                (System/arraycopy sink-values from sorted-sink-values s n)
+                (aset sorted-sink-starts (inc k) (+ s n))
+                (recur (inc k) (+ s n)))))
+          {:rows             rows
+           :cols             cols
+           :use-offsets      use-offsets
+           :source-ids       sorted-source-ids
+           :possible-weights sorted-possible
+           :actual-weights   sorted-actual
+           :sink-offsets     sorted-sink-starts
+           :sink-ids         sorted-sink-ids
+           :sink-values      sorted-sink-values})))))
+
+(defn make-result-graph
+  "Returns an empty result graph for a rows x cols simulation. Cell
+   ids are stored as packed int indexes i * cols + j, so rows * cols
+   must fit in an int."
+  [rows cols]
+  {:pre [(< (* rows cols) Integer/MAX_VALUE)]}
+  (ResultGraph. rows cols 0 0
+                (int-array 1024) (int-array 1024) (double-array 1024) (double-array 1024)
+                (int-array 1025) (int-array 1024) (double-array 1024)))
+
+(defn result-graph?
+  [cache-layer]
+  (instance? ResultGraph cache-layer))
+
+(defn frozen-result-graph?
+  [cache-layer]
+  (and (map? cache-layer) (contains? cache-layer :use-offsets)))
+
+(defn store-carrier-in!
+  "Stores carrier as a result of the simulation at use location id
+   ([i j]). If cache-layer is a result graph, the carrier's source-id,
+   weights, and sink-effects are appended to it immediately and the
+   carrier itself is discarded. Since these appends are not rolled
+   back if a transaction retries (which even one that only commutes
+   may do), they must be made outside of any transaction. Otherwise,
+   cache-layer must be a matrix of refs, and the carrier is commuted
+   onto the list at id in a transaction of its own (or in the current
+   one, if any)."
+  [cache-layer [i j :as id] {:keys [source-id possible-weight actual-weight sink-effects] :as carrier}]
+  (if (instance? ResultGraph cache-layer)
+    (let [cols (.cols ^ResultGraph cache-layer)
+          [si sj] source-id]
+      (.addCarrier ^ResultGraph cache-layer
+                   (int (+ (* (long i) cols) (long j)))
+                   (int (+ (* (long si) cols) (long sj)))
+                   (double possible-weight)
+                   (double actual-weight)
+                   sink-effects))
+    (dosync (commute (get-in cache-layer id) conj carrier))))
+
+(defn freeze-result-graph
+  "Returns an immutable CSR view of graph (sorted by use id) as a map
+   of {:rows :cols :use-offsets :source-ids :possible-weights
+   :actual-weights :sink-offsets :sink-ids :sink-values}. The edges of
+   use cell u are stored at indices use-offsets[u] through
+   use-offsets[u+1] - 1, and the sink edges of edge e at indices
+   sink-offsets[e] through sink-offsets[e+1] - 1."
+  [^ResultGraph graph]
+  (.freeze graph))
+
+(defn- add-into!
+  "Adds each element of b into a and returns a."
+  ^doubles [^doubles a ^doubles b]
+  (dotimes [k (alength a)]
+    (aset a k (+ (aget a k) (aget b k))))
+  a)
+
+(defn sum-edges
+  "Makes one pass over the edges of the frozen graph and returns a map
+   of {:possible-source :actual-source :actual-sink :possible-use
+   :actual-use}, each a double[] (one value per packed cell id) of the
+   sums of the matching edge weights or sink effects at each cell. The
+   use cells are summed in parallel blocks (see
+   clj-misc.utils/parallel-blocks). Each block owns its range of use
+   cells, so they share the use arrays, but it scatters its source and
+   sink sums into arrays of its own, which are added together as the
+   blocks finish. Thus, about one extra set of these arrays per
+   processor is held while the edges are summed."
+  [{:keys [rows cols ^ints use-offsets ^ints source-ids
+           ^doubles possible-weights ^doubles actual-weights
+           ^ints sink-offsets ^ints sink-ids ^doubles sink-values]}]
+  (let [num-cells    (int (* rows cols))
+        possible-use (double-array num-cells)
+        actual-use   (double-array num-cells)
+        sum-block    (fn [block]
+                       (let [possible-source (double-array num-cells)
+                             actual-source   (double-array num-cells)
+                             actual-sink     (double-array num-cells)
+                             u1              (inc (long (last block)))]
+                         (loop [u (long (first block))]
+                           (when (< u u1)
+                             (loop [e (aget use-offsets u), possible 0.0, actual 0.0]
+                               (if (< e (aget use-offsets (inc u)))
+                                 (let [s (aget source-ids e)
+                                       p (aget possible-weights e)
+                                       a (aget actual-weights e)]
+                                   (aset possible-source s (+ (aget possible-source s) p))
+                                   (aset actual-source   s (+ (aget actual-source s) a))
+                                   (loop [k (aget sink-offsets e)]
+                                     (when (< k (aget sink-offsets (inc e)))
+                                       (let [sink (aget sink-ids k)]
+                                         (aset actual-sink sink (+ (aget actual-sink sink) (aget sink-values k)))
+                                         (recur (inc k)))))
+                                   (recur (inc e) (+ possible p) (+ actual a)))
+                                 (do (aset possible-use u possible)
+                                     (aset actual-use   u actual))))
+                             (recur (inc u))))
+                         [possible-source actual-source actual-sink]))
+        [possible-source actual-source actual-sink]
+        (reduce (fn [sums block-sums] (mapv add-into! sums block-sums))
+                (parallel-blocks num-cells sum-block))]
+    {:possible-source possible-source
+     :actual-source   actual-source
+     :actual-sink     actual-sink
+     :possible-use    possible-use
+     :actual-use      actual-use}))
+
+(defn count-users
+  "Returns the number of use cells of the frozen graph which have at
+   least one edge."
+  [{:keys [rows cols ^ints use-offsets]}]
+  (count (filter #(< (aget use-offsets (int %)) (aget use-offsets (inc (int %))))
+                 (range (* rows cols)))))
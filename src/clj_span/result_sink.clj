@@ -0,0 +1,42 @@
+;;; Copyright 2010-2013 Gary Johnson
+;;;
+;;; This file is part of clj-span.
+;;;
+;;; clj-span is free software: you can redistribute it and/or modify
+;;; it under the terms of the GNU General Public License as published
+;;; by the Free Software Foundation, either version 3 of the License,
+;;; or (at your option) any later version.
+;;;
+;;; clj-span is distributed in the hope that it will be useful, but
+;;; WITHOUT ANY WARRANTY; without even the implied warranty of
+;;; MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+;;; General Public License for more details.
+;;;
+;;; You should have received a copy of the GNU General Public License
+;;; along with clj-span.  If not, see <http://www.gnu.org/licenses/>.
+;;;
+;;;-------------------------------------------------------------------
+;;;
+;;; This namespace defines the clj_span.IResultSink interface, which
+;;; external Java programs may implement in order to receive SPAN
+;;; result layers from clj-span.java-span-bridge one block of rows at
+;;; a time rather than as a single HashMap of arrays.
+;;;
+;;; For each requested result layer, the bridge calls beginLayer once,
+;;; then writeRows once per block of rows, and then endLayer once.
+;;; Rows are numbered and ordered using the same x,y projection as
+;;; the input layers, so the values array passed to writeRows holds
+;;; offsets (firstRow * cols) through ((firstRow + numRows) * cols - 1)
+;;; of the complete layer. Its element type is the same as that of the
+;;; corresponding array in the runSpan result HashMap.
+;;;
+;;; This namespace must be AOT-compiled before
+;;; clj-span.java-span-bridge, whose runSpan signature refers to it.
+
+(ns clj-span.result-sink)
+
+(gen-interface
+ :name clj_span.IResultSink
+ :methods [[beginLayer [String int int] void]
+           [writeRows  [String int int Object] void]
+           [endLayer   [String] void]])
@@ -1,9 +1,109 @@
 (ns clj-span.thinklab-monitor
-  (:import (org.integratedmodelling.thinklab.api.listeners IMonitor)))
+  (:import (org.integratedmodelling.thinklab.api.listeners IMonitor)
+           (java.lang.management ManagementFactory MemoryPoolMXBean MemoryType)))
 
 (defn monitor-info [^IMonitor monitor msg]
   (if monitor (.info monitor msg "SPAN")))
 
+(defn monitor-progress-steps [^IMonitor monitor n]
+  (if monitor (.defineProgressSteps monitor (int n))))
+
+(defn monitor-progress [^IMonitor monitor steps description]
+  (if monitor (.addProgress monitor (int steps) description)))
+
+(defn with-progress-step
+  "Calls (f params) and, if it returns a value, reports one step of
+   progress to monitor. Intended for use in ->> pipelines."
+  [monitor description f params]
+  (when-let [result (f params)]
+    (monitor-progress monitor 1 description)
+    result))
+
+;; Stage metrics
+
+(defn- thread-counters
+  "Returns {:cpu {thread-id -> ns} :allocated {thread-id -> bytes}}
+   for all live threads, omitting either map if the JVM does not
+   support it."
+  []
+  (let [bean (ManagementFactory/getThreadMXBean)
+        ids  (.getAllThreadIds bean)]
+    {:cpu       (if (.isThreadCpuTimeSupported bean)
+                  (zipmap ids (map #(.getThreadCpuTime bean (long %)) ids)))
+     :allocated (if (and (instance? com.sun.management.ThreadMXBean bean)
+                         (.isThreadAllocatedMemorySupported ^com.sun.management.ThreadMXBean bean))
+                  (zipmap ids (.getThreadAllocatedBytes ^com.sun.management.ThreadMXBean bean ids)))}))
+
+(defn- counter-delta
+  "Sums the growth of each thread's counter between the before and
+   after maps. Threads which exited in between are not counted."
+  [before after]
+  (if (and before after)
+    (reduce + (for [[id v] after :when (>= v 0)] (- v (max 0 (get before id 0)))))))
+
+(defn- heap-pools
+  []
+  (filter #(= MemoryType/HEAP (.getType ^MemoryPoolMXBean %))
+          (ManagementFactory/getMemoryPoolMXBeans)))
+
+(defn measured-step
+  "Like with-progress-step, but also records the wall time, CPU time,
+   allocated bytes (summed over all threads, so that work done by
+   pmap and futures is included), and peak heap usage of (f params).
+   The metrics are conj'ed onto the metrics atom as a map and reported
+   to monitor. If description is nil, no progress step is reported.
+   CPU time, allocation, and peak heap are JVM-wide, so they include
+   the work of any other runs in progress at the same time.
+
+   The peak heap is only a process-wide approximation. The peaks of
+   the JVM's heap pools are reset at the start of each step, which
+   also resets them for any other step being measured concurrently,
+   and :peak-heap-bytes is the sum of each pool's own peak, which can
+   exceed the true peak of the whole heap since the pools need not
+   peak at the same moment. Use :allocated-bytes to compare stages."
+  [monitor metrics stage description f params]
+  (let [pools  (heap-pools)
+        _      (doseq [^MemoryPoolMXBean pool pools] (.resetPeakUsage pool))
+        before (thread-counters)
+        start  (System/nanoTime)
+        result (if description
+                 (with-progress-step monitor description f params)
+                 (f params))
+        wall   (- (System/nanoTime) start)
+        after  (thread-counters)
+        cpu    (counter-delta (:cpu before) (:cpu after))
+        stage-metrics {:stage           stage
+                       :wall-ms         (/ wall 1e6)
+                       :cpu-ms          (if cpu (/ cpu 1e6))
+                       :allocated-bytes (counter-delta (:allocated before) (:allocated after))
+                       :peak-heap-bytes (reduce + (map #(.getUsed (.getPeakUsage ^MemoryPoolMXBean %)) pools))}]
+    (swap! metrics conj stage-metrics)
+    (monitor-info monitor (str "stage " (name stage) ": " (pr-str (dissoc stage-metrics :stage))))
+    result))
+
+(defn stage-step
+  "Returns a fn of [stage description f params] which runs one step of
+   a ->> pipeline. If metrics is an atom, each step is measured and
+   conj'ed onto it as by measured-step. If metrics is nil, each step
+   only reports progress as with-progress-step does (or nothing if
+   description is nil), and none of the JVM's counters are read or
+   reset."
+  [monitor metrics]
+  (if metrics
+    (partial measured-step monitor metrics)
+    (fn [stage description f params]
+      (if description
+        (with-progress-step monitor description f params)
+        (f params)))))
+
+(defn with-stage-metrics
+  "Attaches the metrics (a seq of maps from measured-step) to result
+   as :stage-metrics metadata, if result supports metadata."
+  [metrics result]
+  (if (instance? clojure.lang.IObj result)
+    (vary-meta result assoc :stage-metrics (vec metrics))
+    result))
+
 (defmacro with-error-monitor [^IMonitor monitor & body]
   `(try ~@body (catch Exception e# (if ~monitor (.error ~monitor e#) (throw e#)))))
 
@@ -12,3 +112,42 @@
   `(if (and ~monitor (.isStopped ~monitor))
      (throw (Exception. "Early termination requested by Thinklab IMonitor."))
      (do ~@body)))
+
+(defn check-interrupt
+  "Throws an exception if monitor has requested early termination.
+   Flow models call this at their chunk boundaries."
+  [^IMonitor monitor]
+  (with-interrupt-checking monitor nil))
+
+(defn interruptible
+  "Returns a function which checks monitor for an early termination
+   request before calling f with its arguments. Use this to wrap the
+   per-chunk work function of a flow model (e.g. the fn passed to
+   pmap) so that cancellation is honored between chunks."
+  [^IMonitor monitor f]
+  (fn [& args]
+    (check-interrupt monitor)
+    (apply f args)))
+
+(defn cancellable-monitor
+  "Returns an IMonitor which delegates to monitor (which may be nil)
+   but also reports itself as stopped once (cancelled?) returns
+   true. Errors raised after cancellation are not passed on. If
+   monitor is nil, the first error is stored in the first-error atom
+   instead so that the caller may rethrow it."
+  [^IMonitor monitor cancelled? first-error]
+  (reify IMonitor
+    (warn  [_ o] (if monitor (.warn monitor o)))
+    (info  [_ info info-class] (if monitor (.info monitor info info-class)))
+    (error [_ o]
+      (when-not (cancelled?)
+        (if monitor
+          (.error monitor o)
+          (compare-and-set! first-error nil o))))
+    (debug [_ o] (if monitor (.debug monitor o)))
+    (stop  [_ o] (if monitor (.stop monitor o)))
+    (isStopped [_]
+      (boolean (or (cancelled?)
+                   (and monitor (.isStopped monitor)))))
+    (defineProgressSteps [_ n] (if monitor (.defineProgressSteps monitor n)))
+    (addProgress [_ steps description] (if monitor (.addProgress monitor steps description)))))
@@ -0,0 +1,91 @@
+(ns clj-span.checkpoint-test
+  (:use clojure.test
+        [clj-span.core       :only (service-carrier)]
+        [clj-misc.matrix-ops :only (make-matrix)]
+        [clj-misc.grid       :only (make-accumulator-grid accumulate-in!)])
+  (:require clj-span.checkpoint
+            (clj-misc [varprop :as vp] [randvars :as rv])))
+
+(def write-checkpoint!   @#'clj-span.checkpoint/write-checkpoint!)
+(def restore-checkpoint! @#'clj-span.checkpoint/restore-checkpoint!)
+
+(def rows 3)
+(def cols 4)
+
+(def values
+  {:numbers  [0.0 1.5 -2.25 7.0]
+   :varprop  [vp/_0_ (vp/fuzzy-number 1.5 0.25) (vp/fuzzy-number -2.0 4.0) (vp/fuzzy-number 7.0 0.0)]
+   :randvars [rv/_0_
+              (with-meta {1.0 0.25 2.0 0.75} rv/disc-type)
+              (with-meta {0.5 0.1 1.5 0.9} rv/disc-type)
+              (with-meta {0.0 0.0 4.0 0.5 8.0 1.0} rv/cont-type)]})
+
+(defn- make-carrier
+  [[a b c d] route stream-bound?]
+  (struct-map service-carrier
+    :source-id       [0 1]
+    :route           route
+    :possible-weight a
+    :actual-weight   b
+    :sink-effects    {[1 1] c [2 3] d}
+    :stream-bound?   stream-bound?))
+
+(defn- make-params
+  "Returns the simulation state which a checkpoint holds. If filled?
+   is true, some cells, sink caps and cached carriers are set from
+   xs; otherwise, they are all zero or empty."
+  [value-type file [zero a b c :as xs] filled?]
+  (let [v     (fn [x] (if filled? x zero))
+        layer (fn [x] (if (= value-type :numbers)
+                        (doto (make-accumulator-grid rows cols)
+                          (accumulate-in! [1 2] + (v x)))
+                        (make-matrix rows cols (fn [[i j]] (ref (if (= [i j] [1 2]) (v x) zero))))))]
+    {:checkpoint-file      file
+     :flow-model           "FloodWaterMovement"
+     :value-type           value-type
+     :possible-flow-layer  (layer a)
+     :actual-flow-layer    (layer b)
+     :cache-layer          (make-matrix rows cols (fn [[i j]]
+                                                    (ref (if (and filled? (= [i j] [2 0]))
+                                                           [(make-carrier xs nil false)
+                                                            (make-carrier (reverse xs) [[2 0] [2 1]] true)]
+                                                           ()))))
+     :overland-sink-caps   {[0 0] (ref (v a)) [1 1] (ref zero)}
+     :floodplain-sink-caps {[2 3] (ref (v c))}}))
+
+(defn- state
+  [{:keys [possible-flow-layer actual-flow-layer cache-layer overland-sink-caps floodplain-sink-caps]}]
+  (let [cells (fn [layer] (for [i (range rows) j (range cols)] (deref (get-in layer [i j]))))
+        caps  (fn [caps] (into {} (for [[id cap-ref] caps] [id @cap-ref])))]
+    {:possible-flow        (cells possible-flow-layer)
+     :actual-flow          (cells actual-flow-layer)
+     :cache                (cells cache-layer)
+     :overland-sink-caps   (caps overland-sink-caps)
+     :floodplain-sink-caps (caps floodplain-sink-caps)}))
+
+(defn- types
+  "Returns the :type metadata of every value in the state, which must
+   survive the round trip for randvars."
+  [state]
+  (map #(:type (meta %)) (tree-seq coll? seq state)))
+
+(deftest checkpoint-round-trip
+  (doseq [[value-type xs] values]
+    (let [file     (java.io.File/createTempFile "clj-span-checkpoint-test" ".ckpt")
+          original (make-params value-type (str file) xs true)
+          restored (make-params value-type (str file) xs false)
+          carriers [(make-carrier xs [[0 1] [1 1]] true)
+                    (make-carrier xs nil false)]]
+      (try
+        (write-checkpoint! original 42 carriers)
+        (let [[step restored-carriers] (restore-checkpoint! restored)]
+          (is (= 42 step) value-type)
+          (is (= carriers restored-carriers) value-type)
+          (is (nil? (:route (second restored-carriers))) value-type)
+          (is (= (state original) (state restored)) value-type)
+          (is (nil? (:route (first (deref (get-in (:cache-layer restored) [2 0]))))) value-type)
+          (is (= [[2 0] [2 1]] (:route (second (deref (get-in (:cache-layer restored) [2 0]))))) value-type)
+          (is (= (types (state original)) (types (state restored))) value-type))
+        (is (thrown? Exception (restore-checkpoint! (assoc restored :flow-model "SedimentTransport"))))
+        (finally
+          (.delete file))))))
@@ -8,7 +8,7 @@
 (def value-type :numbers)
 
 (defn register-math-syms [t]
-  (with-typed-math-syms value-type [_0_ _+_ _-_ _*_ _d_ _* *_ _d _- -_ _>_ _<_ _max_ rv-fn _>]
+  (with-math-context (make-math-context {:value-type value-type}) [_0_ _+_ _-_ _*_ _d_ _* *_ _d _- -_ _>_ _<_ _max_ rv-fn _>]
     (t)))
 
 (use-fixtures :once register-math-syms)
@@ -272,6 +272,57 @@
            '[[[8 6] 12.0 100.0 0.019999999999999997]
              [[8 8] 20.0 300.0 0.03]]))))
 
+(defn- pruned-sight-line
+  "Filters sight-line with split-sight-line and prune-hidden-points,
+   which sight-line-reducer folds into a single pass."
+  [sight-line elev-layer use-elev use-loc-in-m to-meters]
+  (let [[initial-view-space sight-line-remainder] (split-sight-line elev-layer sight-line)
+        initial-view-slope (_- (_d (_-_ (get-in elev-layer (second sight-line)) use-elev)
+                                   (euclidean-distance-2 use-loc-in-m (to-meters (second sight-line))))
+                               0.01)
+        first-segment      (prune-hidden-points nil initial-view-slope elev-layer use-elev use-loc-in-m to-meters initial-view-space)
+        second-segment     (prune-hidden-points (get-in elev-layer (or (last initial-view-space) (first sight-line)))
+                                                (:max-slope first-segment) elev-layer use-elev use-loc-in-m to-meters sight-line-remainder)]
+    (concat (:filtered-line first-segment) (:filtered-line second-segment))))
+
+(defn- reduced-sight-line
+  [use-point source-point elev-layer]
+  (let [use-elev     (get-in elev-layer use-point)
+        use-loc-in-m (to-meters use-point)]
+    (:filtered-line
+     (persistent!
+      (reduce-line-between (sight-line-reducer elev-layer
+                                               use-elev
+                                               (fn ^double [^long i ^long j] (euclidean-distance-2 use-loc-in-m (to-meters [i j]))))
+                           (transient {:filtered-line []})
+                           use-point
+                           source-point)))))
+
+(deftest sight-line-reducing-1
+  (doseq [use-point    (concat use-points source-points)
+          source-point source-points
+          :when        (not= use-point source-point)]
+    (is (= (pruned-sight-line (find-line-between use-point source-point)
+                              elev-layer
+                              (get-in elev-layer use-point)
+                              (to-meters use-point)
+                              to-meters)
+           (reduced-sight-line use-point source-point elev-layer)))))
+
+(deftest sight-line-reducing-2
+  (let [rng (java.util.Random. 7)]
+    (dotimes [_ 200]
+      (let [elev-layer   (vec (for [_ (range 20)] (vec (for [_ (range 20)] (double (.nextInt rng 50))))))
+            use-point    [(.nextInt rng 20) (.nextInt rng 20)]
+            source-point [(.nextInt rng 20) (.nextInt rng 20)]]
+        (when (not= use-point source-point)
+          (is (= (pruned-sight-line (find-line-between use-point source-point)
+                                    elev-layer
+                                    (get-in elev-layer use-point)
+                                    (to-meters use-point)
+                                    to-meters)
+                 (reduced-sight-line use-point source-point elev-layer))))))))
+
 (deftest view-impact-calculation-1
   (let [source-point        (first source-points)
         use-point           (first use-points)
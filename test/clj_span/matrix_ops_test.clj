@@ -1,13 +1,240 @@
 (ns clj-span.matrix-ops-test
   (:use clojure.test
         clojure.pprint
-        clj-misc.matrix-ops :reload-all))
+        clj-misc.matrix-ops :reload-all
+        [clj-misc.grid :only (make-sparse-grid sparse-grid? sparse-coords sparse-values)])
+  (:require [clj-misc.varprop :as vp]))
 
 
 (deftest test-neighbors-clockwise
     (is (= (get-neighbors-clockwise 10 10 [2 2]) [[3 2] [3 3] [2 3] [1 3] [1 2] [1 1] [2 1] [3 1]]))
     (is (= (get-neighbors-clockwise 10 10 [1 0]) [[2 0] [2 1] [1 1] [0 1] [0 0]])))
 
+(deftest test-dense-grids
+  (let [doubles  [[0.0 1.5 2.0] [3.0 -4.0 5.5]]
+        objects  [[:a "b" nil] [[1 2] 3 {:c 4}]]
+        dmatrix  (make-matrix 2 3 (fn [[i j]] (get-in doubles [i j])))
+        omatrix  (make-matrix 2 3 (fn [[i j]] (get-in objects [i j])))]
+    (is (instance? clj_misc.grid.DoubleGrid dmatrix))
+    (is (instance? clj_misc.grid.ObjectGrid omatrix))
+    (doseq [[matrix vectors] [[dmatrix doubles] [omatrix objects]]]
+      (is (= vectors matrix))
+      (is (= matrix vectors))
+      (is (= (hash vectors) (hash matrix)))
+      (is (= (hash (first vectors)) (hash (first matrix))))
+      (is (= (.hashCode ^Object vectors) (.hashCode ^Object matrix)))
+      (is (= #{vectors} #{matrix}))
+      (is (= matrix (seq2matrix 2 3 (apply concat vectors))))
+      (is (= (hash matrix) (hash (seq2matrix 2 3 (apply concat vectors)))))
+      (is (= matrix (map-matrix identity matrix)))
+      (is (not= matrix (assoc-in vectors [1 2] 0.25))))
+    (is (= [[0.0 3.0 4.0] [6.0 -8.0 11.0]] (map-matrix #(* 2 %) dmatrix)))
+    (is (= [[0.0 4.5 6.0] [9.0 -12.0 16.5]] (map-matrix + dmatrix dmatrix dmatrix)))
+    (is (= [[:a "b" nil] [2 3 1]] (map-matrix #(if (coll? %) (count %) %) omatrix)))
+    (is (instance? clj_misc.grid.ObjectGrid (map-matrix str dmatrix)))
+    (is (= [] (make-matrix 0 0 (constantly 1.0))))
+    (is (= (hash []) (hash (make-matrix 0 0 (constantly 1.0)))))))
+
+(deftest test-sparse-grids
+  ;; rows 0, 2 and 4 are empty
+  (let [doubles [[0.0 0.0 0.0 0.0]
+                 [0.0 2.5 0.0 -1.0]
+                 [0.0 0.0 0.0 0.0]
+                 [3.0 0.0 0.0 4.0]
+                 [0.0 0.0 0.0 0.0]]
+        objects (mapv (partial mapv #(if (zero? %) :zero {:x %})) doubles)]
+    (doseq [[zero vectors] [[0.0 doubles] [:zero objects]]]
+      (let [sparse (make-sparse-grid zero 5 4 (fn [[i j]] (get-in vectors [i j])))
+            dense  (make-matrix 5 4 (fn [[i j]] (get-in vectors [i j])))]
+        (is (sparse-grid? sparse))
+        (is (= 5 (get-rows sparse)))
+        (is (= 4 (get-cols sparse)))
+        (doseq [i (range 5) j (range 4)]
+          (is (= (get-in vectors [i j]) (get-in sparse [i j]) (nth (nth sparse i) j))))
+        (is (= [zero zero zero zero] (nth sparse 0) (nth sparse 4)))
+        (is (= vectors sparse))
+        (is (= sparse vectors))
+        (is (= dense sparse))
+        (is (= sparse dense))
+        (is (= (hash vectors) (hash sparse) (hash dense)))
+        (is (= (.hashCode ^Object vectors) (.hashCode ^Object sparse)))
+        (is (thrown? IndexOutOfBoundsException (nth sparse 5)))
+        (is (thrown? IndexOutOfBoundsException (nth sparse -1)))
+        (is (thrown? IndexOutOfBoundsException (nth (nth sparse 1) 4)))
+        (is (= :none (nth sparse 5 :none) (nth (nth sparse 2) 4 :none)))
+        (is (nil? (get sparse 5)))
+        (is (nil? (get-in sparse [1 4])))
+        (is (nil? (get-in sparse [5 0])))
+        (is (= [[1 1] [1 3] [3 0] [3 3]]
+               (sparse-coords sparse)
+               (nonzero-coords zero sparse)
+               (nonzero-coords zero dense)))
+        (is (= (map #(get-in vectors %) (sparse-coords sparse))
+               (sparse-values sparse)
+               (nonzero-values zero dense)))))
+    (let [empty (make-sparse-grid 0.0 3 3 (constantly 0.0))]
+      (is (= [[0.0 0.0 0.0] [0.0 0.0 0.0] [0.0 0.0 0.0]] empty))
+      (is (empty? (sparse-coords empty)))
+      (is (empty? (nonzero-coords 0.0 empty))))))
+
+(deftest test-tile-grid
+  (is (= [{:core [0 0 4 4] :window [0 0 5 5]}
+          {:core [0 4 4 3] :window [0 3 5 4]}
+          {:core [4 0 2 4] :window [3 0 3 5]}
+          {:core [4 4 2 3] :window [3 3 3 4]}]
+         (tile-grid 6 7 4 1)))
+  (is (= [{:core [0 0 3 5] :window [0 0 3 5]}]
+         (tile-grid 3 5 10 2)))
+  (doseq [[rows cols tile-size halo] [[10 10 5 0] [11 7 3 2] [5 13 4 9]]]
+    (let [tiles (tile-grid rows cols tile-size halo)]
+      (is (= (for [i (range rows) j (range cols)] [i j])
+             (sort (for [{[i0 j0 core-rows core-cols] :core} tiles
+                         i (range i0 (+ i0 core-rows))
+                         j (range j0 (+ j0 core-cols))]
+                     [i j]))))
+      (doseq [{[i0 j0 core-rows core-cols] :core [wi0 wj0 window-rows window-cols] :window} tiles]
+        (is (= wi0 (max 0 (- i0 halo))))
+        (is (= wj0 (max 0 (- j0 halo))))
+        (is (= (+ wi0 window-rows) (min rows (+ i0 core-rows halo))))
+        (is (= (+ wj0 window-cols) (min cols (+ j0 core-cols halo))))))))
+
+(deftest test-submatrix
+  (let [vectors (vec (for [i (range 5)] (vec (for [j (range 7)] (double (+ (* 10 i) j))))))
+        matrix  (make-matrix 5 7 (fn [[i j]] (get-in vectors [i j])))]
+    (doseq [m [vectors matrix]]
+      (is (= [[12.0 13.0 14.0] [22.0 23.0 24.0]] (submatrix m [1 2 2 3])))
+      (is (= [[40.0 41.0 42.0 43.0 44.0 45.0 46.0]] (submatrix m [4 0 1 7])))
+      (is (= m (submatrix m [0 0 5 7])))
+      (is (= (hash m) (hash (submatrix m [0 0 5 7]))))
+      (is (= [[23.0]] (submatrix (submatrix m [1 2 3 4]) [1 1 1 1])))
+      (is (is-matrix? (submatrix m [1 1 2 2])))
+      (is (= 2 (get-rows (submatrix m [1 1 2 3]))))
+      (is (= 3 (get-cols (submatrix m [1 1 2 3]))))
+      (is (nil? (get-in (submatrix m [1 1 2 3]) [2 0])))
+      (is (thrown? Exception (submatrix m [4 0 2 7])))
+      (is (thrown? Exception (submatrix m [0 5 5 3]))))
+    (is (= (for [i (range 1 3) j (range 2 5)] (get-in vectors [i j]))
+           (matrix2seq (submatrix matrix [1 2 2 3]))))))
+
+;; The coverage path which resample-matrix took for every resampling
+;; before whole-multiple sizes were sampled block by block.
+(defn- coverage-resample
+  [new-rows new-cols sampling-fn matrix]
+  (let [cell-length (float (/ (get-rows matrix) new-rows))
+        cell-width  (float (/ (get-cols matrix) new-cols))]
+    (make-matrix new-rows new-cols (fn [[i j]] (sampling-fn (get-matrix-coverage matrix cell-length cell-width i j))))))
+
+(deftest test-block-resampling
+  (let [rng      (java.util.Random. 7)
+        rows     24
+        cols     36
+        numbers  (make-matrix rows cols (fn [_] (* 100.0 (.nextDouble rng))))
+        fuzzy    (make-matrix rows cols (fn [_] (vp/fuzzy-number (* 100.0 (.nextDouble rng))
+                                                                 (* 10.0 (.nextDouble rng)))))
+        resample (fn [& args] (binding [*out* (java.io.StringWriter.)] (apply resample-matrix args)))]
+    (doseq [k [2 3 4]]
+      (let [new-rows (quot rows k)
+            new-cols (quot cols k)
+            expected (coverage-resample new-rows new-cols numeric-intensive-sampler numbers)]
+        (is (= expected (resample new-rows new-cols numeric-intensive-sampler numeric-intensive-block-sampler numbers)) k)
+        (is (= expected (resample new-rows new-cols numeric-intensive-sampler numbers)) k)
+        (is (= (coverage-resample new-rows new-cols vp/rv-intensive-sampler fuzzy)
+               (resample new-rows new-cols vp/rv-intensive-sampler fuzzy))
+            k)))))
+
+(deftest test-feature-index
+  (let [features #{[0 7] [3 2] [4 4] [9 9] [11 0]}
+        index    (make-feature-index features 12 10)]
+    (doseq [i (range 12) j (range 10)]
+      (is (= (find-nearest features 12 10 [i j]) (find-nearest-feature index [i j])))
+      (is (= (find-in-range features 100.0 30.0 30.0 12 10 [i j])
+             (find-features-in-range index 100.0 30.0 30.0 [i j]))))
+    (is (nil? (find-nearest-feature (make-feature-index #{} 12 10) [5 5])))))
+
+(deftest test-cell-set
+  (let [matrix (make-matrix 6 9 (fn [[i j]] (if (zero? (rem (+ i (* 2 j)) 5)) 1.0 0.0)))
+        ids    (set (filter-matrix-for-coords pos? matrix))
+        cells  (filter-matrix-for-cell-set pos? matrix)]
+    (is (= ids cells))
+    (is (= cells ids))
+    (is (= (hash ids) (hash cells)))
+    (is (= cells (ids->cell-set 6 9 ids)))
+    (is (= [[0 0] [0 5] [1 2]] (take 3 cells)))
+    (is (= [0 0] (cells [0 0])))
+    (is (nil? (cells [0 1])))
+    (is (nil? (cells [-1 0])))
+    (doseq [id ['(0 5) (seq [1 2]) '(0 1) [0.0 0] [0 0 0] "ab"]]
+      (is (= (contains? ids id) (contains? cells id)) (pr-str id)))
+    (is (= (disj ids [0 0]) (disj cells [0 0]))))
+  (let [cells (filter-matrix-for-cell-set pos? (make-matrix 1000 1000 (fn [[i j]] (if (even? (+ i j)) 1.0 0.0))))]
+    (is (= (.hashCode (set (seq cells))) (.hashCode ^Object cells)))))
+
+(deftest test-cell-indices
+  (doseq [i (range 6) j (range 9)]
+    (let [k (id->index 9 [i j])]
+      (is (= [i j] (index->id 9 k)))
+      (is (index-in-bounds? 6 9 k))
+      (is (= (map (partial id->index 9) (get-neighbors 6 9 [i j]))
+             (get-neighbor-indices 6 9 k)))))
+  (is (not (index-in-bounds? 6 9 -1)))
+  (is (not (index-in-bounds? 6 9 54)))
+  (is (= [10 9 1] (get-neighbor-indices 6 9 0)))
+  (is (= 8 (count neighbor-offsets))))
+
+(defn- reference-line-between
+  "find-line-between as it was computed from lazy ranges of rounded
+   doubles, for checking that reduce-line-between visits the same
+   points."
+  [[pi pj] [bi bj]]
+  (let [m (if (not= pj bj) (/ (- bi pi) (- bj pj)))
+        b (if m (- pi (* m pj)))
+        f (fn [x] (+ (* m x) b))]
+    (cond (nil? m) (map (fn [i] [i pj])
+                        (if (< pi bi)
+                          (range pi (inc bi))
+                          (range pi (dec bi) -1)))
+
+          (zero? m) (map (fn [j] [pi j])
+                         (if (< pj bj)
+                           (range pj (inc bj))
+                           (range pj (dec bj) -1)))
+
+          :otherwise (let [get-i-range
+                           (cond (and (< pi bi) (< pj bj))
+                                 (fn [j] (let [left-i  (int (Math/round (f (- j (if (== j pj) 0.0 0.5)))))
+                                               right-i (int (Math/round (f (+ j (if (== j bj) 0.0 0.5)))))]
+                                           (range left-i (inc right-i))))
+
+                                 (and (< pi bi) (> pj bj))
+                                 (fn [j] (let [left-i  (int (Math/round (f (- j (if (== j bj) 0.0 0.5)))))
+                                               right-i (int (Math/round (f (+ j (if (== j pj) 0.0 0.5)))))]
+                                           (range right-i (inc left-i))))
+
+                                 (and (> pi bi) (< pj bj))
+                                 (fn [j] (let [left-i  (int (Math/round (f (- j (if (== j pj) 0.0 0.5)))))
+                                               right-i (int (Math/round (f (+ j (if (== j bj) 0.0 0.5)))))]
+                                           (range left-i  (dec right-i) -1)))
+
+                                 (and (> pi bi) (> pj bj))
+                                 (fn [j] (let [left-i  (int (Math/round (f (- j (if (== j bj) 0.0 0.5)))))
+                                               right-i (int (Math/round (f (+ j (if (== j pj) 0.0 0.5)))))]
+                                           (range right-i (dec left-i)  -1))))
+                           j-range (if (< pj bj)
+                                     (range pj (inc bj))
+                                     (range pj (dec bj) -1))]
+                       (for [j j-range i (get-i-range j)] [i j])))))
+
+(deftest test-find-line-between
+  (let [rng (java.util.Random. 42)]
+    (dotimes [_ 5000]
+      (let [provider    [(.nextInt rng 200) (.nextInt rng 200)]
+            beneficiary [(.nextInt rng 200) (.nextInt rng 200)]]
+        (is (= (reference-line-between provider beneficiary)
+               (find-line-between provider beneficiary))))))
+  (doseq [provider [[0 0] [5 5] [7 3]] beneficiary [[0 0] [5 5] [5 9] [9 5] [1 5] [5 1] [0 10] [10 0]]]
+    (is (= (reference-line-between provider beneficiary)
+           (find-line-between provider beneficiary)))))
+
 ;(deftest test-group-by-aga
 ;  (is (= (g
 ;([8 4] [9 2] [10 2])
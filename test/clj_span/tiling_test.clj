@@ -0,0 +1,59 @@
+(ns clj-span.tiling-test
+  (:use clojure.test
+        clj-span.core :reload-all
+        [clj-misc.matrix-ops :only (make-matrix)]))
+
+(defn- random-layer
+  [^java.util.Random rng rows cols density max-value]
+  (make-matrix rows cols (fn [_] (if (< (.nextDouble rng) density)
+                                   (* max-value (.nextDouble rng))
+                                   0.0))))
+
+(defn- close?
+  "Compares two result maps of {[i j] value}, where missing cells are
+   zero."
+  [a b]
+  (every? (fn [id]
+            (let [x (double (get a id 0.0))
+                  y (double (get b id 0.0))]
+              (< (Math/abs (- x y)) (* 1e-9 (max 1.0 (Math/abs x))))))
+          (distinct (concat (keys a) (keys b)))))
+
+(deftest tiled-proximity-matches-untiled
+  (let [rng      (java.util.Random. 42)
+        rows     37
+        cols     29
+        params   {:source-layer       (random-layer rng rows cols 0.05 10.0)
+                  :sink-layer         (random-layer rng rows cols 0.1 1.0)
+                  :use-layer          (random-layer rng rows cols 0.05 1.0)
+                  :flow-layers        {}
+                  :source-threshold   0.0
+                  :sink-threshold     0.0
+                  :use-threshold      0.0
+                  :trans-threshold    0.01
+                  :cell-width         200.0
+                  :cell-height        200.0
+                  :rv-max-states      10
+                  :downscaling-factor 1
+                  :source-type        :finite
+                  :sink-type          :finite
+                  :use-type           :finite
+                  :benefit-type       :non-rival
+                  :value-type         :numbers
+                  :animation?         false
+                  :result-type        :closure-map
+                  :flow-model         "Proximity"}
+        tile-dir (.toFile (java.nio.file.Files/createTempDirectory "clj-span-tiling-test"
+                                                                   (make-array java.nio.file.attribute.FileAttribute 0)))
+        untiled  (binding [*out* (java.io.StringWriter.)]
+                   (run-span params))
+        tiled    (binding [*out* (java.io.StringWriter.)]
+                   (run-span (assoc params :tile-size 10 :tile-dir (str tile-dir))))]
+    (try
+      (is (= (set (keys untiled)) (set (keys tiled))))
+      (is (some (comp seq #(%)) (vals untiled)))
+      (doseq [[label f] untiled]
+        (is (close? (f) ((tiled label))) label))
+      (finally
+        (doseq [^java.io.File file (reverse (file-seq tile-dir))]
+          (.delete file))))))
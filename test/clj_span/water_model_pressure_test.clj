@@ -14,7 +14,7 @@
 (def value-type :numbers)
 
 (defn register-math-syms [t]
-  (with-typed-math-syms value-type [_0_ _+_ _-_ _*_ _d_ *_ _d  _<_  _>_ rv-fn _> _min_]
+  (with-math-context (make-math-context {:value-type value-type}) [_0_ _+_ _-_ _*_ _d_ *_ _d  _<_  _>_ rv-fn _> _min_]
     (t)))
 
 (use-fixtures :once register-math-syms)